@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Decides whether an object read by a {@link CachedStorage} from its remote storage is worth
+ * caching in the local one.
+ *
+ * @see TinyLfuAdmissionPolicy
+ */
+public interface AdmissionPolicy {
+
+    /**
+     * Called on every read of an object, whether it's cached or not.
+     */
+    void onAccess(@NonNull String id);
+
+    /**
+     * @param candidate the object which is about to be cached
+     * @param victim    the object which would be deleted to make room for the candidate or
+     *                  null if the local storage has enough space
+     * @return true if the candidate should be cached
+     */
+    boolean admit(@NonNull String candidate, @Nullable String victim);
+
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The seekable format of {@link EncryptedStorage}. An object starts with a header:
+ *
+ * <pre>
+ * 0    4   magic "SKLD"
+ * 4    1   version
+ * 5    3   reserved
+ * 8    4   chunk size, big endian
+ * 12   16  initial counter block
+ * </pre>
+ *
+ * and is followed by the data encrypted with AES in counter mode, so the encrypted data is as
+ * long as the plain one. The counter block of any position is computed directly, that's why
+ * reading can start anywhere. The chunk size tells the unit in which the object is processed,
+ * it's always a multiple of the AES block size.
+ */
+final class AesCtrFormat {
+
+    static final String ALGORITHM = "AES";
+    static final String TRANSFORMATION = ALGORITHM + "/CTR/NoPadding";
+
+    static final int BLOCK_SIZE = 16;
+
+    static final int HEADER_SIZE = 28;
+
+    static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private static final byte[] MAGIC = {'S', 'K', 'L', 'D'};
+
+    private static final byte VERSION = 1;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    final byte[] iv;
+
+    final int chunkSize;
+
+    private AesCtrFormat(byte[] iv, int chunkSize) {
+        this.iv = iv;
+        this.chunkSize = chunkSize;
+    }
+
+    @NonNull
+    static AesCtrFormat create(int chunkSize) {
+        byte[] iv = new byte[BLOCK_SIZE];
+        RANDOM.nextBytes(iv);
+        return new AesCtrFormat(iv, chunkSize);
+    }
+
+    /**
+     * @return the format or null if the header doesn't belong to this format
+     */
+    @Nullable
+    static AesCtrFormat parse(@NonNull byte[] header, int length) throws IOException {
+
+        if (length < HEADER_SIZE) {
+            return null;
+        }
+
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header[i] != MAGIC[i]) {
+                return null;
+            }
+        }
+
+        if (header[4] != VERSION) {
+            throw new IOException("Unsupported version " + header[4]);
+        }
+
+        int chunkSize = (header[8] & 0xFF) << 24 | (header[9] & 0xFF) << 16 | (header[10] & 0xFF) << 8 | (header[11] & 0xFF);
+        if (chunkSize <= 0 || chunkSize % BLOCK_SIZE != 0) {
+            throw new IOException("Bad chunk size " + chunkSize);
+        }
+
+        byte[] iv = new byte[BLOCK_SIZE];
+        System.arraycopy(header, 12, iv, 0, BLOCK_SIZE);
+
+        return new AesCtrFormat(iv, chunkSize);
+
+    }
+
+    @NonNull
+    byte[] getHeader() {
+        byte[] header = new byte[HEADER_SIZE];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        header[4] = VERSION;
+        header[8] = (byte) (chunkSize >>> 24);
+        header[9] = (byte) (chunkSize >>> 16);
+        header[10] = (byte) (chunkSize >>> 8);
+        header[11] = (byte) chunkSize;
+        System.arraycopy(iv, 0, header, 12, BLOCK_SIZE);
+        return header;
+    }
+
+    /**
+     * The key of the legacy format is hashed with SHA-256, so any key gives a 256-bit AES key.
+     */
+    @NonNull
+    static SecretKey deriveKey(@NonNull String key) throws GeneralSecurityException {
+        byte[] encoded = new BigInteger(key, 16).toByteArray();
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(encoded);
+        return new SecretKeySpec(digest, ALGORITHM);
+    }
+
+    /**
+     * @return a cipher from the pool which encrypts or decrypts the data starting at the position
+     */
+    @NonNull
+    Cipher getCipher(@NonNull CipherPool cipherPool, long position) throws GeneralSecurityException {
+        Cipher cipher = cipherPool.acquire();
+        try {
+            init(cipher, cipherPool.getKey(), position);
+        } catch (GeneralSecurityException | RuntimeException e) {
+            cipherPool.release(cipher);
+            throw e;
+        }
+        return cipher;
+    }
+
+    /**
+     * @return a pool of ciphers for this format, they are initialized before each use
+     */
+    @NonNull
+    static CipherPool createCipherPool(@NonNull SecretKey key) {
+        return new CipherPool(
+                TRANSFORMATION,
+                Cipher.ENCRYPT_MODE,
+                key,
+                new IvParameterSpec(new byte[BLOCK_SIZE]),
+                CipherPool.DEFAULT_MAX_SIZE
+        );
+    }
+
+    void init(@NonNull Cipher cipher, @NonNull SecretKey key, long position) throws GeneralSecurityException {
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(getCounter(position / BLOCK_SIZE)));
+        int partial = (int) (position % BLOCK_SIZE);
+        if (partial > 0) {
+            cipher.update(new byte[partial]);
+        }
+    }
+
+    /**
+     * @return the initial counter block plus the block index, as a 128-bit big endian number
+     */
+    @NonNull
+    byte[] getCounter(long blockIndex) {
+        byte[] counter = iv.clone();
+        long carry = blockIndex;
+        for (int i = BLOCK_SIZE - 1; i >= 0 && carry != 0; i--) {
+            long sum = (counter[i] & 0xFF) + (carry & 0xFF);
+            counter[i] = (byte) sum;
+            carry = (carry >>> 8) + (sum >>> 8);
+        }
+        return counter;
+    }
+
+    /**
+     * Decrypts a stream positioned anywhere in the encrypted data. Skipping skips the
+     * encrypted stream and moves the counter, nothing is decrypted. The cipher returns to the
+     * pool on close.
+     */
+    static class DecryptingInputStream extends InputStream {
+
+        private final InputStream inputStream;
+        private final AesCtrFormat format;
+        private final CipherPool cipherPool;
+        private final Cipher cipher;
+
+        private long position;
+
+        private boolean closed;
+
+        DecryptingInputStream(
+                @NonNull InputStream inputStream,
+                @NonNull AesCtrFormat format,
+                @NonNull CipherPool cipherPool,
+                long position
+        ) throws GeneralSecurityException {
+            this.inputStream = inputStream;
+            this.format = format;
+            this.cipherPool = cipherPool;
+            this.cipher = format.getCipher(cipherPool, position);
+            this.position = position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            checkNotClosed();
+            int read = inputStream.read(b, off, len);
+            if (read > 0) {
+                try {
+                    cipher.update(b, off, read, b, off);
+                } catch (GeneralSecurityException e) {
+                    throw new IOException(e);
+                }
+                position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            checkNotClosed();
+            long skipped = inputStream.skip(n);
+            if (skipped > 0) {
+                position += skipped;
+                try {
+                    format.init(cipher, cipherPool.getKey(), position);
+                } catch (GeneralSecurityException e) {
+                    throw new IOException(e);
+                }
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return inputStream.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                inputStream.close();
+            } finally {
+                cipherPool.release(cipher);
+            }
+        }
+
+        private void checkNotClosed() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+        }
+
+    }
+
+}
@@ -17,16 +17,24 @@
 package io.reist.sklad;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import io.reist.sklad.utils.StreamUtils;
 
 /**
  * Created by Reist on 25.06.16.
  */
-public class CachedStorage implements Storage {
+public class CachedStorage implements RangedStorage, ChannelStorage, SizedStorage {
 
     private static final String TAG = CachedStorage.class.getSimpleName();
 
@@ -41,6 +49,9 @@ public class CachedStorage implements Storage {
 
     private boolean lazyCaching;
 
+    @Nullable
+    private volatile AdmissionPolicy admissionPolicy;
+
     public CachedStorage(
             @NonNull Storage remote,
             @NonNull Storage local
@@ -69,8 +80,20 @@ public class CachedStorage implements Storage {
         return remote.openOutputStream(id);
     }
 
+    @NonNull
+    @Override
+    public OutputStream openOutputStream(@NonNull String id, long expectedLength) throws IOException {
+        return Storages.openOutputStream(remote, id, expectedLength);
+    }
+
     @Override
     public InputStream openInputStream(@NonNull final String id) throws IOException {
+
+        AdmissionPolicy admissionPolicy = this.admissionPolicy;
+        if (admissionPolicy != null) {
+            admissionPolicy.onAccess(id);
+        }
+
         if (isFullyCached(id)) {
 
             Log.d(TAG, "Reading " + id + " from local local");
@@ -85,7 +108,14 @@ public class CachedStorage implements Storage {
                 return srcStream;
             }
 
-            final OutputStream dstStream = local.openOutputStream(id);
+            long length = Storages.getLength(srcStream);
+
+            if (admissionPolicy != null && !admit(admissionPolicy, id, length)) {
+                Log.d(TAG, "Reading " + id + " from remote storage without caching");
+                return srcStream;
+            }
+
+            final OutputStream dstStream = Storages.openOutputStream(local, id, length);
 
             Log.d(TAG, "Reading " + id + " from remote storage");
 
@@ -100,9 +130,7 @@ public class CachedStorage implements Storage {
 
                     int byteCount = srcStream.read(b);
 
-                    if (byteCount == -1 || srcStream.available() == 0) {
-                        readFully = true;
-                    } else {
+                    if (byteCount > 0) {
                         try {
                             dstStream.write(b, 0, byteCount);
                         } catch (IOException e) {
@@ -111,6 +139,10 @@ public class CachedStorage implements Storage {
                         }
                     }
 
+                    if (byteCount == -1 || srcStream.available() == 0) {
+                        readFully = true;
+                    }
+
                     return byteCount;
 
                 }
@@ -120,9 +152,7 @@ public class CachedStorage implements Storage {
 
                     int byteCount = srcStream.read(b, off, len);
 
-                    if (byteCount == -1 || srcStream.available() == 0) {
-                        readFully = true;
-                    } else {
+                    if (byteCount > 0) {
                         try {
                             dstStream.write(b, off, byteCount);
                         } catch (IOException e) {
@@ -131,6 +161,10 @@ public class CachedStorage implements Storage {
                         }
                     }
 
+                    if (byteCount == -1 || srcStream.available() == 0) {
+                        readFully = true;
+                    }
+
                     return byteCount;
 
                 }
@@ -219,6 +253,92 @@ public class CachedStorage implements Storage {
         }
     }
 
+    private boolean admit(@NonNull AdmissionPolicy admissionPolicy, @NonNull String id, long length) {
+        String victim = null;
+        if (local instanceof LimitedStorage) {
+            victim = ((LimitedStorage) local).getVictim(Math.max(length, 1));
+        }
+        return admissionPolicy.admit(id, victim);
+    }
+
+    /**
+     * Reads the range from the local storage if the object is fully cached. Otherwise the range
+     * is read from the remote storage and isn't cached, a partial object cannot be cached.
+     */
+    @Override
+    public InputStream openInputStream(@NonNull String id, long offset, long length) throws IOException {
+
+        if (offset <= 0 && length < 0) {
+            return openInputStream(id);
+        }
+
+        recordAccess(id);
+
+        if (isFullyCached(id)) {
+            Log.d(TAG, "Reading a range of " + id + " from local storage");
+            return Storages.openInputStream(local, id, offset, length);
+        } else {
+            Log.d(TAG, "Reading a range of " + id + " from remote storage");
+            return Storages.openInputStream(remote, id, offset, length);
+        }
+
+    }
+
+    /**
+     * Serves the local channel if the object is fully cached. Otherwise the channel wraps
+     * {@link #openInputStream(String)}, so that the object is cached while it's read.
+     */
+    @Override
+    public ReadableByteChannel openReadChannel(@NonNull String id) throws IOException {
+        if (isFullyCached(id)) {
+            recordAccess(id);
+            return Storages.openReadChannel(local, id);
+        } else {
+            InputStream inputStream = openInputStream(id);
+            return inputStream == null ? null : Channels.newChannel(inputStream);
+        }
+    }
+
+    @Override
+    public int read(@NonNull String id, @NonNull ByteBuffer dst, long position) throws IOException {
+        recordAccess(id);
+        if (isFullyCached(id)) {
+            return Storages.read(local, id, dst, position);
+        } else {
+            return Storages.read(remote, id, dst, position);
+        }
+    }
+
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    @Override
+    public long transferTo(@NonNull String id, @NonNull WritableByteChannel target) throws IOException {
+
+        if (isFullyCached(id)) {
+            recordAccess(id);
+            return Storages.transferTo(local, id, target);
+        }
+
+        ReadableByteChannel channel = openReadChannel(id);
+
+        if (channel == null) {
+            return -1;
+        }
+
+        try {
+            return StreamUtils.transfer(channel, target);
+        } finally {
+            channel.close();
+        }
+
+    }
+
+    private void recordAccess(@NonNull String id) {
+        AdmissionPolicy admissionPolicy = this.admissionPolicy;
+        if (admissionPolicy != null) {
+            admissionPolicy.onAccess(id);
+        }
+    }
+
     public boolean isFullyCached(@NonNull String id) throws IOException {
         return cachedStorageStates.isFullyCached(local, id);
     }
@@ -253,6 +373,11 @@ public class CachedStorage implements Storage {
             return;
         }
 
+        if (remote instanceof ChannelStorage) {
+            cacheChannel(id, ((ChannelStorage) remote).openReadChannel(id));
+            return;
+        }
+
         byte[] buffer = new byte[1024];
 
         InputStream inputStream = remote.openInputStream(id);
@@ -263,7 +388,11 @@ public class CachedStorage implements Storage {
 
         try {
 
-            OutputStream outputStream = local.openOutputStream(id);
+            OutputStream outputStream = Storages.openOutputStream(
+                    local,
+                    id,
+                    Storages.getLength(inputStream)
+            );
             boolean readFully = false;
 
             try {
@@ -296,6 +425,51 @@ public class CachedStorage implements Storage {
 
     }
 
+    /**
+     * Copies a remote object which is available as a channel, file channels are transferred by
+     * the kernel.
+     */
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    private void cacheChannel(String id, @Nullable ReadableByteChannel channel) throws IOException {
+
+        if (channel == null) {
+            throw new IllegalStateException("Input stream is null");
+        }
+
+        try {
+
+            long expectedLength = -1;
+            if (channel instanceof FileChannel) {
+                expectedLength = ((FileChannel) channel).size();
+            }
+
+            OutputStream outputStream = Storages.openOutputStream(local, id, expectedLength);
+            boolean readFully = false;
+
+            try {
+
+                StreamUtils.transfer(channel, Channels.newChannel(outputStream));
+
+                readFully = true;
+
+            } finally {
+
+                try {
+                    outputStream.flush();
+                } finally {
+                    outputStream.close();
+                }
+
+                cachedStorageStates.setFullyCached(local, id, readFully);
+
+            }
+
+        } finally {
+            channel.close();
+        }
+
+    }
+
     public boolean purge(@NonNull String id) throws IOException {
         boolean deleted = local.delete(id);
         if (deleted) {
@@ -312,4 +486,20 @@ public class CachedStorage implements Storage {
         return lazyCaching;
     }
 
+    /**
+     * @param admissionPolicy   decides whether objects read from the remote storage are cached,
+     *                          null to cache every object. If the local storage is a
+     *                          {@link LimitedStorage}, the policy is told which object the
+     *                          candidate would replace. {@link #cache(String)} ignores the
+     *                          policy.
+     */
+    public void setAdmissionPolicy(@Nullable AdmissionPolicy admissionPolicy) {
+        this.admissionPolicy = admissionPolicy;
+    }
+
+    @Nullable
+    public AdmissionPolicy getAdmissionPolicy() {
+        return admissionPolicy;
+    }
+
 }
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A {@link Storage} which can serve objects through channels without copying them into
+ * intermediate arrays.
+ *
+ * @see Storages#openReadChannel(Storage, String)
+ * @see Storages#read(Storage, String, ByteBuffer, long)
+ * @see Storages#transferTo(Storage, String, WritableByteChannel)
+ */
+public interface ChannelStorage extends Storage {
+
+    /**
+     * @return a channel positioned at the start of the object or null if there is no such object,
+     * implementations backed by files return a {@link java.nio.channels.FileChannel}
+     */
+    @Nullable
+    ReadableByteChannel openReadChannel(@NonNull String id) throws IOException;
+
+    /**
+     * Reads bytes starting at the given position into the buffer. Can be called by several
+     * threads at once.
+     *
+     * @return the number of bytes read, -1 if the position is at the end of the object or
+     * beyond it
+     * @throws java.io.FileNotFoundException if there is no such object
+     */
+    int read(@NonNull String id, @NonNull ByteBuffer dst, long position) throws IOException;
+
+    /**
+     * Writes the whole object to the channel.
+     *
+     * @return the number of bytes written, -1 if there is no such object
+     */
+    long transferTo(@NonNull String id, @NonNull WritableByteChannel target) throws IOException;
+
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads an object stored in a list of chunks without gathering it into one array. The channel
+ * methods copy chunks into the given buffers directly.
+ *
+ * @see ChunkedOutputStream
+ */
+class ChunkedInputStream extends InputStream implements ReadableByteChannel {
+
+    private final ByteBuffer[] chunks;
+
+    private int chunkIndex;
+
+    @Nullable
+    private ByteBuffer current;
+
+    private long remaining;
+
+    private boolean closed;
+
+    /**
+     * @param chunks    flipped chunks, they aren't modified
+     */
+    ChunkedInputStream(@NonNull ByteBuffer[] chunks, long length, long offset) {
+
+        this.chunks = chunks;
+
+        offset = Math.min(Math.max(offset, 0), length);
+        remaining = length - offset;
+
+        while (chunkIndex < chunks.length) {
+            ByteBuffer chunk = chunks[chunkIndex].duplicate();
+            if (offset < chunk.remaining()) {
+                chunk.position(chunk.position() + (int) offset);
+                current = chunk;
+                break;
+            }
+            offset -= chunk.remaining();
+            chunkIndex++;
+        }
+
+    }
+
+    /**
+     * Called once when the stream is closed.
+     */
+    protected void onClose() {}
+
+    @Override
+    public int read() throws IOException {
+        ByteBuffer chunk = nextChunk();
+        if (chunk == null) {
+            return -1;
+        }
+        remaining--;
+        return chunk.get() & 0xFF;
+    }
+
+    @Override
+    public int read(@NonNull byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        ByteBuffer chunk = nextChunk();
+        if (chunk == null) {
+            return -1;
+        }
+        int count = Math.min(len, chunk.remaining());
+        chunk.get(b, off, count);
+        remaining -= count;
+        return count;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        ByteBuffer chunk = nextChunk();
+        if (chunk == null) {
+            return -1;
+        }
+        int count = Math.min(dst.remaining(), chunk.remaining());
+        int limit = chunk.limit();
+        chunk.limit(chunk.position() + count);
+        dst.put(chunk);
+        chunk.limit(limit);
+        remaining -= count;
+        return count;
+    }
+
+    /**
+     * Reads until the buffer is full or the object ends.
+     *
+     * @return the number of bytes read or -1 if the object has ended before any byte is read
+     */
+    int readFully(@NonNull ByteBuffer dst) throws IOException {
+        int total = 0;
+        while (dst.hasRemaining()) {
+            int read = read(dst);
+            if (read == -1) {
+                return total == 0 ? -1 : total;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n) {
+            ByteBuffer chunk = nextChunk();
+            if (chunk == null) {
+                break;
+            }
+            int count = (int) Math.min(n - skipped, chunk.remaining());
+            chunk.position(chunk.position() + count);
+            skipped += count;
+        }
+        remaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(remaining, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            current = null;
+            onClose();
+        }
+    }
+
+    @Nullable
+    private ByteBuffer nextChunk() throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        while (current == null || !current.hasRemaining()) {
+            if (current != null) {
+                chunkIndex++;
+            }
+            if (chunkIndex >= chunks.length) {
+                current = null;
+                return null;
+            }
+            current = chunks[chunkIndex].duplicate();
+        }
+        return current;
+    }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes an object into a list of chunks, so that the bytes are never copied to grow a buffer.
+ * Chunks are chosen to fit the expected size, otherwise their sizes double as the object grows.
+ * The chunks are published once on close.
+ */
+abstract class ChunkedOutputStream extends OutputStream {
+
+    private final int minChunkSize;
+    private final int maxChunkSize;
+
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+
+    private ByteBuffer current;
+
+    private long length;
+
+    /**
+     * The number of bytes which are still expected or -1 if the size is unknown.
+     */
+    private long expectedRemaining;
+
+    private boolean closed;
+
+    ChunkedOutputStream(int minChunkSize, int maxChunkSize, long expectedLength) {
+        this.minChunkSize = minChunkSize;
+        this.maxChunkSize = maxChunkSize;
+        this.expectedRemaining = expectedLength;
+    }
+
+    /**
+     * @return a cleared buffer which holds at least one byte, it may be smaller or larger than
+     * requested
+     */
+    @NonNull
+    protected abstract ByteBuffer allocateChunk(int size);
+
+    /**
+     * Called once on close.
+     *
+     * @param chunks    flipped chunks, each contains bytes of the object between its position
+     *                  and limit
+     */
+    protected abstract void publish(@NonNull ByteBuffer[] chunks, long length) throws IOException;
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureChunk();
+        current.put((byte) b);
+        length++;
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            ensureChunk();
+            int count = Math.min(len, current.remaining());
+            current.put(b, off, count);
+            off += count;
+            len -= count;
+            length += count;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        ByteBuffer[] chunks = this.chunks.toArray(new ByteBuffer[this.chunks.size()]);
+        for (ByteBuffer chunk : chunks) {
+            chunk.flip();
+        }
+
+        publish(chunks, length);
+
+    }
+
+    private void ensureChunk() throws IOException {
+
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+
+        if (current != null && current.hasRemaining()) {
+            return;
+        }
+
+        int size;
+        if (expectedRemaining > 0) {
+            size = (int) Math.min(expectedRemaining, maxChunkSize);
+        } else if (current == null) {
+            size = minChunkSize;
+        } else {
+            size = Math.min(current.capacity() * 2, maxChunkSize);
+        }
+
+        current = allocateChunk(size);
+        chunks.add(current);
+
+        if (expectedRemaining > 0) {
+            expectedRemaining = Math.max(expectedRemaining - current.capacity(), 0);
+        }
+
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayDeque;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Keeps initialized ciphers of one transformation and mode, so opening a stream doesn't look
+ * up a provider and doesn't schedule the key again. A released cipher is reset with
+ * {@link Cipher#doFinal()} to the state it had after {@link Cipher#init}; if it can't be reset,
+ * because a stream was closed in the middle of a block, it's dropped.
+ */
+final class CipherPool {
+
+    static final int DEFAULT_MAX_SIZE = 16;
+
+    private final String transformation;
+    private final int mode;
+    private final SecretKey key;
+
+    @Nullable
+    private final AlgorithmParameterSpec parameters;
+
+    private final int maxSize;
+
+    private final ArrayDeque<Cipher> ciphers = new ArrayDeque<>();
+
+    CipherPool(
+            @NonNull String transformation,
+            int mode,
+            @NonNull SecretKey key,
+            @Nullable AlgorithmParameterSpec parameters,
+            int maxSize
+    ) {
+        this.transformation = transformation;
+        this.mode = mode;
+        this.key = key;
+        this.parameters = parameters;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return a cipher initialized with the key of the pool
+     */
+    @NonNull
+    Cipher acquire() throws GeneralSecurityException {
+
+        Cipher cipher;
+        synchronized (ciphers) {
+            cipher = ciphers.poll();
+        }
+
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation);
+            if (parameters == null) {
+                cipher.init(mode, key);
+            } else {
+                cipher.init(mode, key, parameters);
+            }
+        }
+
+        return cipher;
+
+    }
+
+    /**
+     * Returns the cipher to the pool. The cipher must not be used after that.
+     */
+    void release(@NonNull Cipher cipher) {
+
+        try {
+            cipher.doFinal();
+        } catch (GeneralSecurityException e) {
+            return;
+        }
+
+        synchronized (ciphers) {
+            if (ciphers.size() < maxSize) {
+                ciphers.add(cipher);
+            }
+        }
+
+    }
+
+    int size() {
+        synchronized (ciphers) {
+            return ciphers.size();
+        }
+    }
+
+    @NonNull
+    SecretKey getKey() {
+        return key;
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Estimates how often keys occur using four rows of 4-bit counters, 16 counters packed into a
+ * long. Each row has four counters per expected key, so a key costs 8 bytes regardless of its
+ * length. The estimate is the minimum of the key's counters and may exceed the real frequency
+ * because of hash collisions, never the other way round.
+ *
+ * When the number of increments reaches ten times the number of expected keys, all counters
+ * are halved, so that the sketch follows changes in popularity.
+ */
+final class CountMinSketch {
+
+    private static final int DEPTH = 4;
+
+    private static final int MAX_COUNT = 15;
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private static final int[] SEEDS = {0x97cb3127, 0xb1a2f3e5, 0x7ed55d16, 0xc761c23c};
+
+    private final long[] table;
+
+    private final int rowMask;
+
+    private final int sampleSize;
+
+    private int size;
+
+    CountMinSketch(int expectedKeys) {
+        expectedKeys = Math.max(expectedKeys, 16);
+        int width = Integer.highestOneBit(expectedKeys * 4 - 1) << 1;
+        this.table = new long[width * DEPTH / 16];
+        this.rowMask = width - 1;
+        this.sampleSize = expectedKeys * 10;
+    }
+
+    int frequency(@NonNull String key) {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            int index = indexOf(hash, i);
+            frequency = Math.min(frequency, (int) ((table[index >>> 4] >>> ((index & 15) << 2)) & 0xf));
+        }
+        return frequency;
+    }
+
+    void increment(@NonNull String key) {
+
+        int hash = spread(key.hashCode());
+        boolean added = false;
+
+        for (int i = 0; i < DEPTH; i++) {
+            int index = indexOf(hash, i);
+            int shift = (index & 15) << 2;
+            long word = table[index >>> 4];
+            if (((word >>> shift) & 0xf) < MAX_COUNT) {
+                table[index >>> 4] = word + (1L << shift);
+                added = true;
+            }
+        }
+
+        if (added && ++size == sampleSize) {
+            reset();
+        }
+
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size /= 2;
+    }
+
+    void clear() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = 0;
+        }
+        size = 0;
+    }
+
+    /**
+     * @return the index of the key's counter in the row, counters of a row are contiguous
+     */
+    private int indexOf(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+        h ^= h >>> 16;
+        return row * (rowMask + 1) + (h & rowMask);
+    }
+
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+
+}
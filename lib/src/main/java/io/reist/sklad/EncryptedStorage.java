@@ -22,6 +22,7 @@ import android.support.annotation.Nullable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.math.BigInteger;
 import java.security.GeneralSecurityException;
 
@@ -31,20 +32,89 @@ import javax.crypto.CipherOutputStream;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 
+import io.reist.sklad.utils.StreamUtils;
+
 /**
  * Created by Reist on 28.06.16.
+ *
+ * Objects are written in the {@link Format} given to the constructor. Reading detects the
+ * format of each object, so objects written in the legacy format stay readable after switching
+ * to {@link Format#AES_CTR}.
  */
-public class EncryptedStorage implements Storage {
+public class EncryptedStorage implements RangedStorage, SizedStorage {
+
+    public enum Format {
+
+        /**
+         * The legacy format, Blowfish in ECB mode with PKCS #5 padding. A range is read from the
+         * block containing its start.
+         */
+        BLOWFISH,
+
+        /**
+         * AES in counter mode after a header, see {@link AesCtrFormat}. A range is read without
+         * touching the data before it.
+         */
+        AES_CTR
+
+    }
 
     public static final String ALGORITHM = "Blowfish";
     public static final String TRANSFORMATION = ALGORITHM;
 
+    /**
+     * The default transformation is ECB with PKCS #5 padding, blocks are decrypted one by one
+     * with this transformation to read a range and the padding is removed manually.
+     */
+    static final String BLOCK_TRANSFORMATION = ALGORITHM + "/ECB/NoPadding";
+
+    static final int BLOCK_SIZE = 8;
+
     private final Storage wrappedStorage;
     private final String key;
+    private final Format format;
+
+    private volatile ParallelCipher parallelCipher;
+
+    private volatile CipherPools cipherPools;
 
     public EncryptedStorage(Storage wrappedStorage, String key) {
+        this(wrappedStorage, key, Format.BLOWFISH);
+    }
+
+    public EncryptedStorage(Storage wrappedStorage, String key, Format format) {
         this.wrappedStorage = wrappedStorage;
         this.key = key;
+        this.format = format;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * Makes objects in {@link Format#AES_CTR} be encrypted and decrypted in chunks on a pool of
+     * worker threads. Each stream keeps at most chunksInFlight chunks in memory, reading
+     * decrypts that many chunks ahead. Streams which are already open are not affected.
+     *
+     * @param threads           the number of worker threads, one disables the workers
+     * @param chunksInFlight    the number of chunks being processed per stream
+     */
+    public void setParallelism(int threads, int chunksInFlight) {
+        if (threads < 1 || chunksInFlight < 1) {
+            throw new IllegalArgumentException("Threads and chunks in flight must be positive");
+        }
+        parallelCipher = threads == 1 ? null : new ParallelCipher(threads, chunksInFlight);
+    }
+
+    public int getParallelism() {
+        ParallelCipher parallelCipher = this.parallelCipher;
+        return parallelCipher == null ? 1 : parallelCipher.getThreads();
+    }
+
+    public int getChunksInFlight() {
+        ParallelCipher parallelCipher = this.parallelCipher;
+        return parallelCipher == null ? 0 : parallelCipher.getChunksInFlight();
     }
 
     @Override
@@ -52,41 +122,239 @@ public class EncryptedStorage implements Storage {
         return wrappedStorage.contains(id);
     }
 
+    /**
+     * The keys are derived on the first use and the ciphers are reused by all streams.
+     */
     @NonNull
-    static Cipher getCipher(int mode, String key) throws GeneralSecurityException {
-        byte[] encoded = new BigInteger(key, 16).toByteArray();
-        SecretKey secretKey = new SecretKeySpec(encoded, ALGORITHM);
-        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-        cipher.init(mode, secretKey);
-        return cipher;
+    private CipherPools getCipherPools() throws GeneralSecurityException {
+        CipherPools cipherPools = this.cipherPools;
+        if (cipherPools == null) {
+            synchronized (this) {
+                cipherPools = this.cipherPools;
+                if (cipherPools == null) {
+                    cipherPools = new CipherPools(key);
+                    this.cipherPools = cipherPools;
+                }
+            }
+        }
+        return cipherPools;
     }
 
     @NonNull
     @Override
     public OutputStream openOutputStream(@NonNull String id) throws IOException {
+        return openOutputStream(id, -1);
+    }
+
+    /**
+     * The wrapped storage expects the size with the padding or the header.
+     */
+    @NonNull
+    @Override
+    public OutputStream openOutputStream(@NonNull String id, long expectedLength) throws IOException {
+        if (format == Format.AES_CTR) {
+            return openAesCtrOutputStream(id, expectedLength);
+        }
         try {
-            OutputStream outputStream = wrappedStorage.openOutputStream(id);
-            Cipher cipher = getCipher(Cipher.ENCRYPT_MODE, key);
-            return new CipherOutputStream(outputStream, cipher);
+            CipherPool cipherPool = getCipherPools().encryption;
+            long encryptedLength = expectedLength < 0 ? -1 : (expectedLength / BLOCK_SIZE + 1) * BLOCK_SIZE;
+            OutputStream outputStream = Storages.openOutputStream(wrappedStorage, id, encryptedLength);
+            return new PooledCipherOutputStream(outputStream, cipherPool, cipherPool.acquire());
         } catch (GeneralSecurityException e) {
             throw new IOException(e);
         }
     }
 
+    @NonNull
+    private OutputStream openAesCtrOutputStream(@NonNull String id, long expectedLength) throws IOException {
+
+        CipherPool cipherPool;
+        try {
+            cipherPool = getCipherPools().aesCtr;
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+
+        AesCtrFormat aesCtrFormat = AesCtrFormat.create(AesCtrFormat.DEFAULT_CHUNK_SIZE);
+        long encryptedLength = expectedLength < 0 ? -1 : AesCtrFormat.HEADER_SIZE + expectedLength;
+        OutputStream outputStream = Storages.openOutputStream(wrappedStorage, id, encryptedLength);
+
+        try {
+
+            outputStream.write(aesCtrFormat.getHeader());
+
+            ParallelCipher parallelCipher = this.parallelCipher;
+            if (parallelCipher == null) {
+                return new PooledCipherOutputStream(outputStream, cipherPool, aesCtrFormat.getCipher(cipherPool, 0));
+            } else {
+                return parallelCipher.openOutputStream(outputStream, aesCtrFormat, cipherPool);
+            }
+
+        } catch (GeneralSecurityException e) {
+            outputStream.close();
+            throw new IOException(e);
+        } catch (IOException e) {
+            outputStream.close();
+            throw e;
+        }
+
+    }
+
     @Nullable
     @Override
     public InputStream openInputStream(@NonNull final String id) throws IOException {
+
+        final InputStream inputStream = wrappedStorage.openInputStream(id);
+        if (inputStream == null) {
+            return null;
+        }
+
         try {
-            final InputStream inputStream = wrappedStorage.openInputStream(id);
-            if (inputStream == null) {
-                return null;
-            } else {
-                Cipher cipher = getCipher(Cipher.DECRYPT_MODE, key);
-                return new InterruptibleInputStream(new EncryptedInputStream(inputStream, cipher));
+
+            PushbackInputStream pushbackStream = new PushbackInputStream(inputStream, AesCtrFormat.HEADER_SIZE);
+            byte[] header = new byte[AesCtrFormat.HEADER_SIZE];
+            int headerLength = Math.max(StreamUtils.read(pushbackStream, header, 0, header.length), 0);
+
+            AesCtrFormat aesCtrFormat = AesCtrFormat.parse(header, headerLength);
+            if (aesCtrFormat != null) {
+                return openDecryptingInputStream(pushbackStream, aesCtrFormat, 0);
             }
+
+            pushbackStream.unread(header, 0, headerLength);
+            CipherPool cipherPool = getCipherPools().decryption;
+            return new InterruptibleInputStream(new EncryptedInputStream(pushbackStream, cipherPool, cipherPool.acquire()));
+
+        } catch (GeneralSecurityException e) {
+            inputStream.close();
+            throw new IOException(e);
+        } catch (IOException | RuntimeException e) {
+            inputStream.close();
+            throw e;
+        }
+
+    }
+
+    /**
+     * Reads the header first to tell the format of the object. Objects in {@link Format#AES_CTR}
+     * are read from the offset directly.
+     */
+    @Nullable
+    @Override
+    public InputStream openInputStream(@NonNull String id, long offset, long length) throws IOException {
+
+        offset = Math.max(offset, 0);
+
+        AesCtrFormat aesCtrFormat = readAesCtrFormat(id);
+        if (aesCtrFormat == null) {
+            return openBlockInputStream(id, offset, length);
+        }
+
+        InputStream inputStream = Storages.openInputStream(
+                wrappedStorage,
+                id,
+                AesCtrFormat.HEADER_SIZE + offset,
+                length
+        );
+
+        if (inputStream == null) {
+            return null;
+        }
+
+        try {
+            return openDecryptingInputStream(inputStream, aesCtrFormat, offset);
+        } catch (GeneralSecurityException e) {
+            inputStream.close();
+            throw new IOException(e);
+        }
+
+    }
+
+    @NonNull
+    private InputStream openDecryptingInputStream(
+            @NonNull InputStream inputStream,
+            @NonNull AesCtrFormat aesCtrFormat,
+            long position
+    ) throws GeneralSecurityException {
+
+        CipherPool cipherPool = getCipherPools().aesCtr;
+
+        ParallelCipher parallelCipher = this.parallelCipher;
+        if (parallelCipher == null) {
+            return new InterruptibleInputStream(new AesCtrFormat.DecryptingInputStream(
+                    inputStream,
+                    aesCtrFormat,
+                    cipherPool,
+                    position
+            ));
+        } else {
+            return new InterruptibleInputStream(parallelCipher.openInputStream(
+                    inputStream,
+                    aesCtrFormat,
+                    cipherPool,
+                    position
+            ));
+        }
+
+    }
+
+    /**
+     * @return the format of the object or null if it's missing or in the legacy format
+     */
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    @Nullable
+    private AesCtrFormat readAesCtrFormat(@NonNull String id) throws IOException {
+
+        InputStream inputStream = Storages.openInputStream(wrappedStorage, id, 0, AesCtrFormat.HEADER_SIZE);
+        if (inputStream == null) {
+            return null;
+        }
+
+        try {
+            byte[] header = new byte[AesCtrFormat.HEADER_SIZE];
+            int headerLength = StreamUtils.read(inputStream, header, 0, header.length);
+            return AesCtrFormat.parse(header, headerLength);
+        } finally {
+            inputStream.close();
+        }
+
+    }
+
+    /**
+     * Blocks are encrypted independently, so decryption starts at the block containing the
+     * offset. One block past the range is requested to tell whether the range reaches the
+     * padded last block.
+     */
+    @Nullable
+    private InputStream openBlockInputStream(@NonNull String id, long offset, long length) throws IOException {
+
+        long blockOffset = offset - offset % BLOCK_SIZE;
+        long blockLength;
+        if (length < 0) {
+            blockLength = -1;
+        } else {
+            long end = offset + length + BLOCK_SIZE - 1;
+            blockLength = end - end % BLOCK_SIZE + BLOCK_SIZE - blockOffset;
+        }
+
+        InputStream inputStream = Storages.openInputStream(wrappedStorage, id, blockOffset, blockLength);
+
+        if (inputStream == null) {
+            return null;
+        }
+
+        try {
+            CipherPool cipherPool = getCipherPools().blockDecryption;
+            InputStream decryptedStream = new BlockInputStream(inputStream, cipherPool, cipherPool.acquire(), blockLength);
+            StreamUtils.skipFully(decryptedStream, offset - blockOffset);
+            return new InterruptibleInputStream(StreamUtils.limit(decryptedStream, length));
         } catch (GeneralSecurityException e) {
+            inputStream.close();
             throw new IOException(e);
+        } catch (IOException e) {
+            inputStream.close();
+            throw e;
         }
+
     }
 
     @Override
@@ -99,13 +367,122 @@ public class EncryptedStorage implements Storage {
         wrappedStorage.deleteAll();
     }
 
+    /**
+     * The ciphers of both formats. The legacy key is the hex string itself, the AES key is
+     * derived from it.
+     */
+    private static final class CipherPools {
+
+        final CipherPool encryption;
+        final CipherPool decryption;
+        final CipherPool blockDecryption;
+        final CipherPool aesCtr;
+
+        CipherPools(String key) throws GeneralSecurityException {
+
+            byte[] encoded = new BigInteger(key, 16).toByteArray();
+            SecretKey secretKey = new SecretKeySpec(encoded, ALGORITHM);
+
+            encryption = new CipherPool(TRANSFORMATION, Cipher.ENCRYPT_MODE, secretKey, null, CipherPool.DEFAULT_MAX_SIZE);
+            decryption = new CipherPool(TRANSFORMATION, Cipher.DECRYPT_MODE, secretKey, null, CipherPool.DEFAULT_MAX_SIZE);
+            blockDecryption = new CipherPool(BLOCK_TRANSFORMATION, Cipher.DECRYPT_MODE, secretKey, null, CipherPool.DEFAULT_MAX_SIZE);
+            aesCtr = AesCtrFormat.createCipherPool(AesCtrFormat.deriveKey(key));
+
+        }
+
+    }
+
+    /**
+     * Returns the cipher to the pool on close. Writing after that fails instead of touching a
+     * cipher which may be used by another stream.
+     */
+    private static class PooledCipherOutputStream extends CipherOutputStream {
+
+        private final CipherPool cipherPool;
+        private final Cipher cipher;
+
+        private boolean closed;
+
+        PooledCipherOutputStream(OutputStream outputStream, CipherPool cipherPool, Cipher cipher) {
+            super(outputStream, cipher);
+            this.cipherPool = cipherPool;
+            this.cipher = cipher;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            checkNotClosed();
+            super.write(b);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b) throws IOException {
+            write(b, 0, b.length);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            checkNotClosed();
+            super.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            checkNotClosed();
+            super.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                cipherPool.release(cipher);
+            }
+        }
+
+        private void checkNotClosed() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+        }
+
+    }
+
     private static class EncryptedInputStream extends CipherInputStream {
 
         private final InputStream inputStream;
+        private final CipherPool cipherPool;
+        private final Cipher cipher;
 
-        public EncryptedInputStream(InputStream inputStream, Cipher cipher) {
+        private boolean closed;
+
+        public EncryptedInputStream(InputStream inputStream, CipherPool cipherPool, Cipher cipher) {
             super(inputStream, cipher);
             this.inputStream = inputStream;
+            this.cipherPool = cipherPool;
+            this.cipher = cipher;
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkNotClosed();
+            return super.read();
+        }
+
+        @Override
+        public int read(@NonNull byte[] b) throws IOException {
+            return read(b, 0, b.length);
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            checkNotClosed();
+            return super.read(b, off, len);
         }
 
         @Override
@@ -124,6 +501,157 @@ public class EncryptedStorage implements Storage {
             return skipped;
         }
 
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                cipherPool.release(cipher);
+            }
+        }
+
+        private void checkNotClosed() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+        }
+
+    }
+
+    /**
+     * Decrypts whole blocks with a cipher without padding. The last block is held back until
+     * it is known whether it ends the object and has to be unpadded.
+     */
+    private static class BlockInputStream extends InputStream {
+
+        private final InputStream inputStream;
+        private final CipherPool cipherPool;
+        private final Cipher cipher;
+
+        /**
+         * The number of bytes requested from the wrapped storage or -1 if the rest of the object
+         * has been requested.
+         */
+        private final long requestedLength;
+
+        private final byte[] encrypted = new byte[64 * BLOCK_SIZE];
+
+        private byte[] decrypted = new byte[0];
+        private int position;
+        private int limit;
+
+        @Nullable
+        private byte[] heldBlock;
+
+        private long totalRead;
+        private boolean finished;
+        private boolean closed;
+
+        BlockInputStream(InputStream inputStream, CipherPool cipherPool, Cipher cipher, long requestedLength) {
+            this.inputStream = inputStream;
+            this.cipherPool = cipherPool;
+            this.cipher = cipher;
+            this.requestedLength = requestedLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            while (position == limit) {
+                if (finished) {
+                    return -1;
+                }
+                fill();
+            }
+            int count = Math.min(len, limit - position);
+            System.arraycopy(decrypted, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                inputStream.close();
+            } finally {
+                cipherPool.release(cipher);
+            }
+        }
+
+        private void fill() throws IOException {
+
+            int read = 0;
+            while (read < encrypted.length) {
+                int r = inputStream.read(encrypted, read, encrypted.length - read);
+                if (r == -1) {
+                    finished = true;
+                    break;
+                }
+                read += r;
+            }
+
+            totalRead += read;
+
+            if (read % BLOCK_SIZE != 0) {
+                throw new IOException("Encrypted data is not a multiple of " + BLOCK_SIZE);
+            }
+
+            int held = heldBlock == null ? 0 : BLOCK_SIZE;
+            byte[] out = new byte[held + read];
+            if (heldBlock != null) {
+                System.arraycopy(heldBlock, 0, out, 0, BLOCK_SIZE);
+            }
+            if (read > 0) {
+                try {
+                    cipher.update(encrypted, 0, read, out, held);
+                } catch (GeneralSecurityException e) {
+                    throw new IOException(e);
+                }
+            }
+
+            decrypted = out;
+            position = 0;
+
+            if (!finished) {
+                limit = out.length - BLOCK_SIZE;
+                heldBlock = new byte[BLOCK_SIZE];
+                System.arraycopy(out, limit, heldBlock, 0, BLOCK_SIZE);
+                return;
+            }
+
+            limit = out.length;
+            heldBlock = null;
+
+            if (limit > 0 && (requestedLength < 0 || totalRead < requestedLength)) {
+                // the object has ended, the last block is padded
+                int padding = out[limit - 1] & 0xFF;
+                if (padding < 1 || padding > BLOCK_SIZE) {
+                    throw new IOException("Bad padding");
+                }
+                limit -= padding;
+            }
+
+        }
+
     }
 
 }
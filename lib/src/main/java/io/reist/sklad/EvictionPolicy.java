@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Decides which object a {@link LimitedStorage} deletes when it runs out of space. The storage
+ * reports writes, reads and deletions, so the policy only sees objects which went through it.
+ * Methods can be called from several threads at once.
+ *
+ * @see LruEvictionPolicy
+ * @see LfuEvictionPolicy
+ * @see FifoEvictionPolicy
+ * @see GdsfEvictionPolicy
+ * @see S3FifoEvictionPolicy
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Called when an object has been written. Rewriting an object calls this method again.
+     */
+    void onWrite(@NonNull String id, long length);
+
+    /**
+     * Called when an object has been opened for reading.
+     */
+    void onAccess(@NonNull String id);
+
+    /**
+     * Called when an object has been deleted by a client of the storage.
+     */
+    void onRemove(@NonNull String id);
+
+    /**
+     * Called when an object returned by {@link #selectVictim(Filter)} has been deleted to free space.
+     */
+    void onEvict(@NonNull String id);
+
+    /**
+     * Called when all objects have been deleted.
+     */
+    void onClear();
+
+    /**
+     * Called when space is needed and the returned object is about to be evicted. The policy
+     * may update its state, e.g. to give other objects a second chance.
+     *
+     * @param filter    tells which objects can be deleted now, objects which are being written
+     *                  for instance can't
+     * @return  the object to be deleted next or null if no known object is accepted by the
+     *          filter. The object remains known until {@link #onEvict(String)} is called.
+     */
+    @Nullable
+    String selectVictim(@NonNull Filter filter);
+
+    /**
+     * Tells which object {@link #selectVictim(Filter)} would return without changing the state
+     * of the policy, so that it can be called when nothing is going to be evicted, e.g. to
+     * decide whether to admit a new object.
+     */
+    @Nullable
+    String peekVictim(@NonNull Filter filter);
+
+    interface Filter {
+
+        boolean isEvictable(@NonNull String id);
+
+    }
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import android.support.annotation.NonNull;
+
+import java.util.Map;
+
+/**
+ * A {@link Storage} which keeps expiration times along with its objects, so that they survive
+ * a restart if the objects do. Times are {@link System#currentTimeMillis()} values.
+ *
+ * @see Storages#setExpiration(Storage, String, long)
+ * @see Storages#getExpirations(Storage)
+ */
+public interface ExpiringStorage extends Storage {
+
+    /**
+     * Does nothing if there is no such object. The expiration time is dropped when the object
+     * is rewritten or deleted.
+     *
+     * @param expiresAt the time after which the object is stale, 0 means never
+     */
+    void setExpiration(@NonNull String id, long expiresAt);
+
+    /**
+     * @return the expiration times of the stored objects which have one
+     */
+    @NonNull
+    Map<String, Long> getExpirations();
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Expiration times of objects. Checking an object is a hash lookup, the objects are also kept
+ * ordered by expiration time, so that expired ones are found without a scan. Times are
+ * {@link System#currentTimeMillis()} values, so that they can be persisted.
+ */
+final class ExpiryIndex {
+
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    private final TreeSet<Entry> queue = new TreeSet<>(new Comparator<Entry>() {
+
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            long d = e1.expiresAt - e2.expiresAt;
+            if (d != 0) {
+                return d < 0 ? -1 : 1;
+            }
+            return e1.id.compareTo(e2.id);
+        }
+
+    });
+
+    synchronized void put(@NonNull String id, long expiresAt) {
+        remove(id);
+        Entry entry = new Entry(id, expiresAt);
+        entries.put(id, entry);
+        queue.add(entry);
+    }
+
+    synchronized void remove(@NonNull String id) {
+        Entry entry = entries.remove(id);
+        if (entry != null) {
+            queue.remove(entry);
+        }
+    }
+
+    synchronized boolean isExpired(@NonNull String id, long now) {
+        Entry entry = entries.get(id);
+        return entry != null && entry.expiresAt - now <= 0;
+    }
+
+    /**
+     * @return an expired object accepted by the filter or null if there is none
+     */
+    @Nullable
+    synchronized String findExpired(long now, @NonNull EvictionPolicy.Filter filter) {
+        for (Entry entry : queue) {
+            if (entry.expiresAt - now > 0) {
+                break;
+            } else if (filter.isEvictable(entry.id)) {
+                return entry.id;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the expiration time closest to now or {@link Long#MAX_VALUE} if there are no
+     *          objects
+     */
+    synchronized long getNextExpiration() {
+        return queue.isEmpty() ? Long.MAX_VALUE : queue.first().expiresAt;
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        queue.clear();
+    }
+
+    private static class Entry {
+
+        final String id;
+        final long expiresAt;
+
+        Entry(String id, long expiresAt) {
+            this.id = id;
+            this.expiresAt = expiresAt;
+        }
+
+    }
+
+}
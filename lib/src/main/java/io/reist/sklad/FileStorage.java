@@ -18,6 +18,8 @@ package io.reist.sklad;
 
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.os.Build;
+import android.util.Log;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -26,80 +28,586 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import io.reist.sklad.utils.FileUtils;
-
-import static io.reist.sklad.utils.FileUtils.getFolderSize;
+import io.reist.sklad.utils.StreamUtils;
 
 /**
  * Created by Reist on 28.06.16.
  */
-public class FileStorage implements JournalingStorage {
+public class FileStorage implements JournalingStorage, RangedStorage, ChannelStorage, SizedStorage,
+        ExpiringStorage {
+
+    private static final String TAG = FileStorage.class.getSimpleName();
+
+    private static final int LOCK_STRIPE_COUNT = 64;
+
+    /**
+     * The number of files kept open for positional reads.
+     */
+    private static final int READ_CHANNEL_CACHE_SIZE = 16;
+
+    /**
+     * Objects are written to temporary files with this suffix which are renamed on commit.
+     */
+    private static final String TEMP_SUFFIX = ".sklad-tmp";
+
+    /**
+     * Index of the stored objects. {@link #usedSpace} is kept equal to the sum of the sizes,
+     * so that it's updated with deltas instead of walking the directory.
+     *
+     * The iteration order is the modification order, the oldest object comes first.
+     *
+     * Guarded by {@link #indexLock} which is only held for in-memory updates and journal
+     * appends, never for operations on the objects themselves.
+     */
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    /**
+     * A copy of {@link #entries} for lock-free lookups.
+     */
+    private final ConcurrentMap<String, Entry> entryLookup = new ConcurrentHashMap<>();
+
+    /**
+     * Absolute paths of the temporary files of the output streams which are still open.
+     * Guarded by {@link #indexLock}.
+     */
+    private final Set<String> tempPaths = new HashSet<>();
+
+    private final Object indexLock = new Object();
+
+    /**
+     * Operations on an object hold the lock stripe of its id, so that operations on unrelated
+     * ids don't wait for each other.
+     */
+    private final Object[] lockStripes = new Object[LOCK_STRIPE_COUNT];
+
+    /**
+     * Operations on single objects hold the read lock, operations on the whole directory hold
+     * the write lock.
+     */
+    private final ReadWriteLock directoryLock = new ReentrantReadWriteLock();
+
+    /**
+     * Released as soon as {@link #entries} are loaded.
+     */
+    private final CountDownLatch indexLatch = new CountDownLatch(1);
+
+    private volatile File parent;
+    private final FileUtils.Filter filter;
 
-    private final Set<String> existingFilenames = new HashSet<>();
+    @Nullable
+    private final FileStorageJournal journal;
 
-    private File parent;
-    private final FileUtils.Filter filter;
+    private volatile long usedSpace;
 
-    private long usedSpace;
+    /**
+     * Null unless memory mapped reads are enabled.
+     */
+    @Nullable
+    private volatile MappedBufferCache mappedBufferCache;
+
+    private final ReadChannelCache readChannelCache = new ReadChannelCache(READ_CHANNEL_CACHE_SIZE);
 
     public FileStorage(@NonNull File parent) {
         this(parent, FileUtils.DEFAULT_FILTER);
     }
 
     public FileStorage(@NonNull File parent, @NonNull FileUtils.Filter filter) {
+        this(parent, filter, null);
+    }
+
+    /**
+     * @param journalFile   a file to persist the index to. If it's given, the index is loaded
+     *                      from the file and the directory is walked in background only when
+     *                      the file is missing or corrupt. It may reside in the parent directory,
+     *                      the storage doesn't treat it as an object.
+     */
+    public FileStorage(
+            @NonNull File parent,
+            @NonNull final FileUtils.Filter filter,
+            @Nullable File journalFile
+    ) {
+
         this.parent = parent;
-        this.filter = filter;
-        recalculateUsedSpace();
-        checkFileExistence();
+
+        for (int i = 0; i < LOCK_STRIPE_COUNT; i++) {
+            lockStripes[i] = new Object();
+        }
+
+        final FileStorageJournal journal = journalFile == null ? null : new FileStorageJournal(journalFile);
+
+        this.journal = journal;
+        this.filter = new FileUtils.Filter() {
+
+            @Override
+            public boolean accept(@NonNull File f) {
+                return !isTempFile(f) && (journal == null || !journal.isJournalFile(f)) && filter.accept(f);
+            }
+
+        };
+
+        if (journal == null) {
+            reconcile();
+        } else if (loadJournal()) {
+            indexLatch.countDown();
+        } else {
+            (new Thread() {
+
+                @Override
+                public void run() {
+                    reconcile();
+                }
+
+            }).start();
+        }
+
+    }
+
+    private boolean loadJournal() {
+        synchronized (indexLock) {
+
+            List<String> staleTempPaths = new ArrayList<>();
+
+            //noinspection ConstantConditions
+            if (!journal.load(entries, staleTempPaths)) {
+                entries.clear();
+                return false;
+            }
+
+            // no stream is open yet, so these have been left behind by a crash
+            for (String path : staleTempPaths) {
+                //noinspection ResultOfMethodCallIgnored
+                new File(path).delete();
+            }
+
+            long usedSpace = 0;
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                entryLookup.put(entry.getKey(), entry.getValue());
+                usedSpace += entry.getValue().size;
+            }
+            this.usedSpace = usedSpace;
+
+            try {
+                journal.compactIfNeeded(entries, tempPaths);
+            } catch (IOException e) {
+                discardJournal(e);
+            }
+
+            return true;
+
+        }
+    }
+
+    private void awaitIndex() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                indexLatch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Rebuilds the index of the stored objects by walking {@link #parent}. Normally the index
+     * is kept up to date by the storage itself, so this is only needed when the directory has
+     * been modified bypassing the storage.
+     */
+    public void reconcile() {
+        directoryLock.writeLock().lock();
+        try {
+
+            List<File> files = new ArrayList<>();
+            listFiles(parent, files);
+
+            final Map<File, Long> lastModified = new HashMap<>();
+            for (File file : files) {
+                lastModified.put(file, file.lastModified());
+            }
+
+            Collections.sort(files, new Comparator<File>() {
+
+                @Override
+                public int compare(File f1, File f2) {
+                    long m1 = lastModified.get(f1);
+                    long m2 = lastModified.get(f2);
+                    return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+                }
+
+            });
+
+            invalidateAllCaches();
+
+            synchronized (indexLock) {
+
+                // expiration times can't be found in the directory
+                Map<String, Entry> previousEntries = new HashMap<>(entries);
+
+                entries.clear();
+                entryLookup.clear();
+
+                long usedSpace = 0;
+                for (File file : files) {
+                    String id = getIdByFile(file);
+                    if (id != null) {
+                        Entry previous = previousEntries.get(id);
+                        Entry entry = new Entry(
+                                file.length(),
+                                lastModified.get(file),
+                                previous == null ? 0 : previous.expiresAt
+                        );
+                        entries.put(id, entry);
+                        entryLookup.put(id, entry);
+                        usedSpace += entry.size;
+                    }
+                }
+                this.usedSpace = usedSpace;
+
+                if (journal != null) {
+                    try {
+                        journal.rewrite(entries, tempPaths);
+                    } catch (IOException e) {
+                        discardJournal(e);
+                    }
+                }
+
+            }
+
+        } finally {
+            directoryLock.writeLock().unlock();
+            indexLatch.countDown();
+        }
     }
 
-    private void checkFileExistence() {
+    private void listFiles(File directory, List<File> result) {
 
-        File[] files = parent.listFiles();
+        File[] files = directory.listFiles();
 
         if (files == null) {
             return;
         }
 
         for (File file : files) {
-            if (filter.accept(file)) {
-                this.existingFilenames.add(file.getName());
+            if (isTempFile(file)) {
+                deleteTempFileIfStale(file);
+                continue;
+            }
+            if (!filter.accept(file)) {
+                continue;
+            }
+            if (file.isDirectory()) {
+                listFiles(file, result);
+            } else {
+                result.add(file);
+            }
+        }
+
+    }
+
+    /**
+     * Adds or updates an entry moving it to the end of the modification order.
+     */
+    private void putEntry(String id, long size) {
+        synchronized (indexLock) {
+
+            Entry entry = new Entry(size, System.currentTimeMillis());
+            Entry previous = entries.remove(id);
+            entries.put(id, entry);
+            entryLookup.put(id, entry);
+            usedSpace += previous == null ? size : size - previous.size;
+
+            if (journal != null) {
+                try {
+                    journal.put(id, entry);
+                    journal.compactIfNeeded(entries, tempPaths);
+                } catch (IOException e) {
+                    discardJournal(e);
+                }
+            }
+
+        }
+    }
+
+    private void removeEntry(String id) {
+        synchronized (indexLock) {
+
+            Entry entry = entries.remove(id);
+
+            if (entry == null) {
+                return;
+            }
+
+            entryLookup.remove(id);
+            usedSpace -= entry.size;
+
+            if (journal != null) {
+                try {
+                    journal.remove(id);
+                } catch (IOException e) {
+                    discardJournal(e);
+                }
+            }
+
+        }
+    }
+
+    private void clearEntries() {
+        synchronized (indexLock) {
+
+            entries.clear();
+            entryLookup.clear();
+            usedSpace = 0;
+
+            if (journal != null) {
+                try {
+                    journal.clear();
+                } catch (IOException e) {
+                    discardJournal(e);
+                }
+            }
+
+        }
+    }
+
+    private static boolean isTempFile(@NonNull File file) {
+        return file.getName().endsWith(TEMP_SUFFIX);
+    }
+
+    private void addTempFile(@NonNull File tempFile) {
+        synchronized (indexLock) {
+            String path = tempFile.getAbsolutePath();
+            tempPaths.add(path);
+            if (journal != null) {
+                try {
+                    journal.addTemp(path);
+                } catch (IOException e) {
+                    discardJournal(e);
+                }
+            }
+        }
+    }
+
+    private void removeTempFile(@NonNull File tempFile) {
+        synchronized (indexLock) {
+            tempPaths.remove(tempFile.getAbsolutePath());
+        }
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private void deleteTempFileIfStale(@NonNull File tempFile) {
+        synchronized (indexLock) {
+            if (!tempPaths.contains(tempFile.getAbsolutePath())) {
+                tempFile.delete();
             }
         }
+    }
+
+    @NonNull
+    private Object getLockStripe(@NonNull String id) {
+        int h = id.hashCode();
+        return lockStripes[(h ^ (h >>> 16)) & (LOCK_STRIPE_COUNT - 1)];
+    }
+
+    private void invalidateCaches(@NonNull String id) {
+        readChannelCache.invalidate(id);
+        MappedBufferCache cache = mappedBufferCache;
+        if (cache != null) {
+            cache.invalidate(id);
+        }
+    }
+
+    private void invalidateAllCaches() {
+        readChannelCache.invalidateAll();
+        MappedBufferCache cache = mappedBufferCache;
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
 
+    /**
+     * @return a stream reading a memory mapping of the file or null if the file cannot be
+     * mapped
+     */
+    @Nullable
+    private InputStream openMappedInputStream(
+            @NonNull MappedBufferCache cache,
+            @NonNull String id,
+            @NonNull File file,
+            long offset
+    ) throws FileNotFoundException {
+        try {
+            MappedBufferCache.Mapping mapping = cache.acquire(id, file);
+            if (mapping != null) {
+                return new MappedBufferCache.MappedInputStream(cache, mapping, offset);
+            }
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot map " + file.getAbsolutePath(), e);
+        }
+        return null;
     }
 
-    private void recalculateUsedSpace() {
-        usedSpace = getFolderSize(parent);
+    private void discardJournal(IOException e) {
+        Log.w(TAG, "Index journal is out of sync and will be rebuilt on the next start", e);
+        //noinspection ConstantConditions
+        journal.discard();
     }
 
     @Override
-    public synchronized boolean contains(@NonNull String id) {
-        return existingFilenames.contains(getFileById(id).getName());
+    public boolean contains(@NonNull String id) {
+        awaitIndex();
+        return entryLookup.containsKey(id);
     }
 
     @SuppressWarnings("ResultOfMethodCallIgnored")
     @NonNull
     @Override
-    public synchronized OutputStream openOutputStream(@NonNull final String id) throws IOException {
-        final File file = getFileById(id);
-        file.getParentFile().mkdirs();
-        return new FileOutputStream(file) {
+    public OutputStream openOutputStream(@NonNull final String id) throws IOException {
+        return openOutputStream(id, -1);
+    }
 
-            @Override
-            public void close() throws IOException {
-                try {
-                    super.close();
-                } finally {
-                    recalculateUsedSpace();
-                    existingFilenames.add(file.getName());
+    /**
+     * Preallocates the file when the size is known, the file is truncated on close if fewer
+     * bytes have been written.
+     */
+    @NonNull
+    @Override
+    public OutputStream openOutputStream(@NonNull final String id, final long expectedLength) throws IOException {
+        directoryLock.readLock().lock();
+        try {
+
+            final File file = getFileById(id);
+            final File tempFile = new File(
+                    file.getParentFile(),
+                    file.getName() + '.' + FileUtils.tempName() + TEMP_SUFFIX
+            );
+
+            synchronized (getLockStripe(id)) {
+                file.getParentFile().mkdirs();
+            }
+
+            addTempFile(tempFile);
+
+            try {
+                FileOutputStream outputStream = new FileOutputStream(tempFile) {
+
+                    private boolean closed;
+
+                    @Override
+                    public void close() throws IOException {
+
+                        if (closed) {
+                            return;
+                        }
+
+                        closed = true;
+
+                        boolean written = false;
+                        try {
+                            try {
+                                if (expectedLength > 0) {
+                                    FileChannel channel = getChannel();
+                                    channel.truncate(channel.position());
+                                }
+                                // the data must be durable before the rename is
+                                getFD().sync();
+                            } finally {
+                                super.close();
+                            }
+                            written = true;
+                        } finally {
+                            commit(id, tempFile, file, written);
+                        }
+
+                    }
+
+                };
+                if (expectedLength > 0) {
+                    preallocate(outputStream, expectedLength);
                 }
+                return outputStream;
+            } catch (IOException e) {
+                removeTempFile(tempFile);
+                throw e;
             }
 
-        };
+        } finally {
+            directoryLock.readLock().unlock();
+        }
+    }
+
+    private static void preallocate(FileOutputStream outputStream, long length) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            Preallocator.preallocate(outputStream, length);
+        }
+    }
+
+    /**
+     * Publishes a written object by renaming its temporary file, so that readers see either
+     * the previous version or the new one. The temporary file has been synced by then, so a
+     * power loss can't leave a truncated object under the final name. If the previous version
+     * has to be deleted first and the rename still fails, the object is removed from the index.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private void commit(String id, File tempFile, File file, boolean written) throws IOException {
+        awaitIndex();
+        directoryLock.readLock().lock();
+        try {
+            synchronized (getLockStripe(id)) {
+
+                boolean renamed = false;
+                if (written) {
+                    renamed = tempFile.renameTo(file);
+                    if (!renamed && file.delete()) {
+                        // the previous version is gone even if the second attempt fails
+                        invalidateCaches(id);
+                        removeEntry(id);
+                        renamed = tempFile.renameTo(file);
+                    }
+                }
+
+                if (renamed) {
+                    invalidateCaches(id);
+                    putEntry(id, file.length());
+                } else {
+                    tempFile.delete();
+                }
+
+                removeTempFile(tempFile);
+
+                if (written && !renamed) {
+                    throw new IOException("Cannot commit " + file.getAbsolutePath());
+                }
+
+            }
+        } finally {
+            directoryLock.readLock().unlock();
+        }
     }
 
     @Nullable
@@ -108,84 +616,327 @@ public class FileStorage implements JournalingStorage {
         try {
             File file = getFileById(id);
             if (filter.accept(file)) {
-                return new InterruptibleInputStream(new FileInputStream(file));
+                MappedBufferCache cache = mappedBufferCache;
+                InputStream inputStream = cache == null ? null : openMappedInputStream(cache, id, file, 0);
+                if (inputStream == null) {
+                    inputStream = new FileInputStream(file);
+                }
+                return new InterruptibleInputStream(inputStream);
             }
         } catch (FileNotFoundException ignored) {}
         return null;
     }
 
+    @Nullable
     @Override
-    public synchronized boolean delete(@NonNull String id) {
+    public InputStream openInputStream(@NonNull String id, long offset, long length) throws IOException {
+        offset = Math.max(offset, 0);
         File file = getFileById(id);
+        if (!filter.accept(file)) {
+            return null;
+        }
+        MappedBufferCache cache = mappedBufferCache;
+        if (cache != null) {
+            try {
+                InputStream inputStream = openMappedInputStream(cache, id, file, offset);
+                if (inputStream != null) {
+                    return StreamUtils.limit(new InterruptibleInputStream(inputStream), length);
+                }
+            } catch (FileNotFoundException e) {
+                return null;
+            }
+        }
+        FileInputStream inputStream;
+        try {
+            inputStream = new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
         try {
+            inputStream.getChannel().position(offset);
+        } catch (IOException e) {
+            inputStream.close();
+            throw e;
+        }
+        return StreamUtils.limit(new InterruptibleInputStream(inputStream), length);
+    }
+
+    @Nullable
+    @Override
+    public FileChannel openReadChannel(@NonNull String id) {
+        try {
+            File file = getFileById(id);
             if (filter.accept(file)) {
-                return file.delete();
+                return new FileInputStream(file).getChannel();
+            }
+        } catch (FileNotFoundException ignored) {}
+        return null;
+    }
+
+    /**
+     * Files stay open between positional reads, so that a read is a single system call. The
+     * least recently read files are closed when more than {@value #READ_CHANNEL_CACHE_SIZE} are
+     * open.
+     */
+    @Override
+    public int read(@NonNull String id, @NonNull ByteBuffer dst, long position) throws IOException {
+
+        MappedBufferCache cache = mappedBufferCache;
+        if (cache != null) {
+            File file = getFileById(id);
+            if (!filter.accept(file)) {
+                throw new FileNotFoundException(id);
+            }
+            InputStream inputStream = openMappedInputStream(cache, id, file, position);
+            if (inputStream != null) {
+                try {
+                    return StreamUtils.read(inputStream, dst);
+                } finally {
+                    inputStream.close();
+                }
+            }
+        }
+
+        File file = getFileById(id);
+        if (!filter.accept(file)) {
+            throw new FileNotFoundException(id);
+        }
+
+        ReadChannelCache.Handle handle = readChannelCache.acquire(id, file);
+        try {
+            int total = 0;
+            while (dst.hasRemaining()) {
+                int read = handle.channel.read(dst, position + total);
+                if (read == -1) {
+                    return total == 0 ? -1 : total;
+                }
+                total += read;
             }
+            return total;
         } finally {
-            recalculateUsedSpace();
-            existingFilenames.remove(file.getName());
+            readChannelCache.release(handle);
         }
-        return false;
+
     }
 
-    @SuppressWarnings("ResultOfMethodCallIgnored")
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
     @Override
-    public synchronized void deleteAll() {
+    public long transferTo(@NonNull String id, @NonNull WritableByteChannel target) throws IOException {
+
+        FileChannel channel = openReadChannel(id);
+
+        if (channel == null) {
+            return -1;
+        }
+
         try {
-            FileUtils.deleteFile(parent, filter);
+            return StreamUtils.transfer(channel, target);
         } finally {
-            recalculateUsedSpace();
-            existingFilenames.clear();
+            channel.close();
         }
+
     }
 
     @Override
-    public long getUsedSpace() {
-        return usedSpace;
+    public boolean delete(@NonNull String id) {
+        awaitIndex();
+        directoryLock.readLock().lock();
+        try {
+            File file = getFileById(id);
+            synchronized (getLockStripe(id)) {
+                boolean deleted = filter.accept(file) && file.delete();
+                invalidateCaches(id);
+                if (deleted || !file.exists()) {
+                    removeEntry(id);
+                }
+                return deleted;
+            }
+        } finally {
+            directoryLock.readLock().unlock();
+        }
     }
 
     @Override
-    public String getOldestId() {
-
-        File[] files = parent.listFiles();
-
-        if (files == null) {
-            return null;
+    public void deleteAll() {
+        awaitIndex();
+        directoryLock.writeLock().lock();
+        try {
+            invalidateAllCaches();
+            if (FileUtils.deleteFile(parent, filter)) {
+                clearEntries();
+            } else {
+                reconcile();
+            }
+        } finally {
+            directoryLock.writeLock().unlock();
         }
+    }
 
-        File oldest = null;
-
-        for (File file : files) {
+    /**
+     * The expiration time is persisted in the journal if there is one.
+     */
+    @Override
+    public void setExpiration(@NonNull String id, long expiresAt) {
+        awaitIndex();
+        synchronized (indexLock) {
 
-            if (file.isDirectory() || !filter.accept(file)) {
-                continue;
+            Entry entry = entries.get(id);
+            if (entry == null || entry.expiresAt == expiresAt) {
+                return;
             }
 
-            if (oldest == null || file.lastModified() < oldest.lastModified()) {
-                oldest = file;
+            // replacing the value keeps the modification order
+            entry = entry.withExpiration(expiresAt);
+            entries.put(id, entry);
+            entryLookup.put(id, entry);
+
+            if (journal != null) {
+                try {
+                    journal.expire(id, expiresAt);
+                    journal.compactIfNeeded(entries, tempPaths);
+                } catch (IOException e) {
+                    discardJournal(e);
+                }
             }
 
         }
+    }
+
+    @NonNull
+    @Override
+    public Map<String, Long> getExpirations() {
+        awaitIndex();
+        Map<String, Long> expirations = new HashMap<>();
+        synchronized (indexLock) {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                if (entry.getValue().expiresAt != 0) {
+                    expirations.put(entry.getKey(), entry.getValue().expiresAt);
+                }
+            }
+        }
+        return expirations;
+    }
+
+    @Override
+    public long getUsedSpace() {
+        awaitIndex();
+        return usedSpace;
+    }
 
-        return oldest == null ? null : getIdByFile(oldest);
+    @Override
+    public long getLength(@NonNull String id) {
+        awaitIndex();
+        Entry entry = entryLookup.get(id);
+        return entry == null ? -1 : entry.size;
+    }
 
+    @Override
+    public String getOldestId() {
+        awaitIndex();
+        synchronized (indexLock) {
+            Iterator<String> iterator = entries.keySet().iterator();
+            return iterator.hasNext() ? iterator.next() : null;
+        }
+    }
+
+    @Nullable
+    @Override
+    public String getOldestId(@NonNull EvictionPolicy.Filter filter) {
+        awaitIndex();
+        synchronized (indexLock) {
+            for (String id : entries.keySet()) {
+                if (filter.isEvictable(id)) {
+                    return id;
+                }
+            }
+            return null;
+        }
     }
 
     public File getFileById(@NonNull String id) {
         return new File(parent, id);
     }
 
+    /**
+     * Files outside the storage directory are identified by their names. Subclasses with
+     * a different layout may return null for files which don't belong to it.
+     *
+     * @return the id of the object stored in the given file
+     */
+    @Nullable
     public String getIdByFile(File file) {
-        return file.getName();
+        String parentPath = parent.getAbsolutePath();
+        String path = file.getAbsolutePath();
+        if (path.startsWith(parentPath + File.separator)) {
+            return path.substring(parentPath.length() + 1);
+        } else {
+            return file.getName();
+        }
     }
 
-    public synchronized void setParent(File parent) throws IOException {
-        FileUtils.moveAllFiles(this.parent, parent, filter);
-        this.parent = parent;
+    public void setParent(File parent) throws IOException {
+        awaitIndex();
+        directoryLock.writeLock().lock();
+        try {
+            invalidateAllCaches();
+            FileUtils.moveAllFiles(this.parent, parent, filter);
+            this.parent = parent;
+        } finally {
+            directoryLock.writeLock().unlock();
+        }
     }
 
     public File getParent() {
         return parent;
     }
 
+    /**
+     * Enables reading objects from memory mappings. Mapping saves a system call and a copy per
+     * read and pays off for small objects which are read often.
+     *
+     * @param maxObjectSize the size of the largest object to map, 0 disables mapping
+     * @param maxCacheSize  the number of bytes which stay mapped between reads
+     */
+    public void setMemoryMapping(long maxObjectSize, long maxCacheSize) {
+        MappedBufferCache previous = mappedBufferCache;
+        mappedBufferCache = maxObjectSize > 0 && maxCacheSize > 0 ?
+                new MappedBufferCache(maxObjectSize, maxCacheSize) :
+                null;
+        if (previous != null) {
+            previous.invalidateAll();
+        }
+    }
+
+    @Nullable
+    MappedBufferCache getMappedBufferCache() {
+        return mappedBufferCache;
+    }
+
+    static final class Entry {
+
+        final long size;
+        final long modified;
+
+        /**
+         * A {@link System#currentTimeMillis()} value, 0 if the object never expires
+         */
+        final long expiresAt;
+
+        Entry(long size, long modified) {
+            this(size, modified, 0);
+        }
+
+        Entry(long size, long modified, long expiresAt) {
+            this.size = size;
+            this.modified = modified;
+            this.expiresAt = expiresAt;
+        }
+
+        @NonNull
+        Entry withExpiration(long expiresAt) {
+            return new Entry(size, modified, expiresAt);
+        }
+
+    }
+
 }
@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import android.support.annotation.NonNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Append-only log of {@link FileStorage} index changes. Replaying the log restores the index
+ * without walking the storage directory.
+ *
+ * The file starts with a header which is followed by records of five kinds: an entry has been
+ * put, an entry has been removed, all entries have been removed, an entry has got an
+ * expiration time and a temporary file has been created. The latter lets the storage remove
+ * temporary files left behind by a crash without walking the directory. A record which is cut
+ * short by a crash is ignored. When the number of records exceeds the number of live entries
+ * considerably the log is compacted into a snapshot of the index.
+ */
+class FileStorageJournal {
+
+    private static final int MAGIC = 0x534b4c44;
+    private static final int VERSION = 1;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final byte OP_CLEAR = 3;
+    private static final byte OP_TEMP = 4;
+    private static final byte OP_EXPIRE = 5;
+
+    private static final int MIN_COMPACTION_RECORD_COUNT = 2000;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File file;
+
+    private DataOutputStream outputStream;
+
+    private int recordCount;
+
+    /**
+     * Set when the log ends with a broken record, nothing can be appended after it then.
+     */
+    private boolean truncated;
+
+    private boolean discarded;
+
+    FileStorageJournal(@NonNull File file) {
+        this.file = file.getAbsoluteFile();
+    }
+
+    /**
+     * @return true if the file name is reserved by this journal
+     */
+    boolean isJournalFile(@NonNull File f) {
+        f = f.getAbsoluteFile();
+        return f.equals(file) || f.equals(getTempFile());
+    }
+
+    /**
+     * Replays the log into the given map and collects the paths of the temporary files created
+     * since the last snapshot.
+     *
+     * @return false if the log doesn't exist or is corrupt, the results should be ignored then
+     */
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    boolean load(
+            @NonNull Map<String, FileStorage.Entry> entries,
+            @NonNull Collection<String> tempPaths
+    ) {
+
+        DataInputStream inputStream;
+
+        try {
+            inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+
+        try {
+
+            try {
+                if (inputStream.readInt() != MAGIC || inputStream.readInt() != VERSION) {
+                    return false;
+                }
+            } catch (IOException e) {
+                return false;
+            }
+
+            recordCount = 0;
+            truncated = false;
+
+            while (true) {
+
+                int op = inputStream.read();
+
+                if (op == -1) {
+                    break;
+                }
+
+                if (op == OP_PUT) {
+                    String id = inputStream.readUTF();
+                    long size = inputStream.readLong();
+                    long modified = inputStream.readLong();
+                    entries.remove(id);
+                    entries.put(id, new FileStorage.Entry(size, modified));
+                } else if (op == OP_REMOVE) {
+                    entries.remove(inputStream.readUTF());
+                } else if (op == OP_CLEAR) {
+                    entries.clear();
+                } else if (op == OP_TEMP) {
+                    tempPaths.add(inputStream.readUTF());
+                } else if (op == OP_EXPIRE) {
+                    String id = inputStream.readUTF();
+                    long expiresAt = inputStream.readLong();
+                    FileStorage.Entry entry = entries.get(id);
+                    if (entry != null) {
+                        entries.put(id, entry.withExpiration(expiresAt));
+                    }
+                } else {
+                    return false;
+                }
+
+                recordCount++;
+
+            }
+
+        } catch (EOFException e) {
+            // the last record has been cut short, everything before it is valid
+            truncated = true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try {
+                inputStream.close();
+            } catch (IOException ignored) {}
+        }
+
+        return true;
+
+    }
+
+    void put(@NonNull String id, @NonNull FileStorage.Entry entry) throws IOException {
+        if (discarded) {
+            return;
+        }
+        DataOutputStream outputStream = getOutputStream();
+        outputStream.writeByte(OP_PUT);
+        writeEntry(outputStream, id, entry);
+        outputStream.flush();
+        recordCount++;
+    }
+
+    void remove(@NonNull String id) throws IOException {
+        if (discarded) {
+            return;
+        }
+        DataOutputStream outputStream = getOutputStream();
+        outputStream.writeByte(OP_REMOVE);
+        outputStream.writeUTF(id);
+        outputStream.flush();
+        recordCount++;
+    }
+
+    void expire(@NonNull String id, long expiresAt) throws IOException {
+        if (discarded) {
+            return;
+        }
+        DataOutputStream outputStream = getOutputStream();
+        writeExpiration(outputStream, id, expiresAt);
+        outputStream.flush();
+        recordCount++;
+    }
+
+    void clear() throws IOException {
+        if (discarded) {
+            return;
+        }
+        DataOutputStream outputStream = getOutputStream();
+        outputStream.writeByte(OP_CLEAR);
+        outputStream.flush();
+        recordCount++;
+    }
+
+    void addTemp(@NonNull String path) throws IOException {
+        if (discarded) {
+            return;
+        }
+        DataOutputStream outputStream = getOutputStream();
+        outputStream.writeByte(OP_TEMP);
+        outputStream.writeUTF(path);
+        outputStream.flush();
+        recordCount++;
+    }
+
+    /**
+     * Replaces the log with a snapshot of the given entries if the log has grown too long or
+     * ends with a broken record.
+     */
+    void compactIfNeeded(
+            @NonNull Map<String, FileStorage.Entry> entries,
+            @NonNull Collection<String> tempPaths
+    ) throws IOException {
+        if (discarded) {
+            return;
+        }
+        if (truncated || recordCount > MIN_COMPACTION_RECORD_COUNT && recordCount > 2 * entries.size()) {
+            rewrite(entries, tempPaths);
+        }
+    }
+
+    /**
+     * Atomically replaces the log with a snapshot of the given entries and the temporary files
+     * which are still in use. Also brings back a log which has been discarded.
+     */
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    void rewrite(
+            @NonNull Map<String, FileStorage.Entry> entries,
+            @NonNull Collection<String> tempPaths
+    ) throws IOException {
+
+        closeOutputStream();
+        discarded = false;
+
+        File tempFile = getTempFile();
+        createDirectory();
+
+        DataOutputStream outputStream = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile))
+        );
+
+        int expirationCount = 0;
+
+        try {
+            writeHeader(outputStream);
+            for (Map.Entry<String, FileStorage.Entry> entry : entries.entrySet()) {
+                outputStream.writeByte(OP_PUT);
+                writeEntry(outputStream, entry.getKey(), entry.getValue());
+                if (entry.getValue().expiresAt != 0) {
+                    writeExpiration(outputStream, entry.getKey(), entry.getValue().expiresAt);
+                    expirationCount++;
+                }
+            }
+            for (String path : tempPaths) {
+                outputStream.writeByte(OP_TEMP);
+                outputStream.writeUTF(path);
+            }
+            outputStream.flush();
+        } finally {
+            outputStream.close();
+        }
+
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Cannot replace " + file.getAbsolutePath());
+        }
+
+        recordCount = entries.size() + expirationCount + tempPaths.size();
+        truncated = false;
+
+    }
+
+    /**
+     * Deletes the log so that the index is rebuilt from scratch on the next start. Used when
+     * the log cannot be kept in sync with the index, all changes are ignored until
+     * {@link #rewrite(Map, Collection)} is called.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    void discard() {
+        discarded = true;
+        closeOutputStream();
+        file.delete();
+        getTempFile().delete();
+    }
+
+    private DataOutputStream getOutputStream() throws IOException {
+        if (outputStream == null) {
+            createDirectory();
+            boolean exists = file.exists();
+            outputStream = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file, exists))
+            );
+            if (!exists) {
+                writeHeader(outputStream);
+            }
+        }
+        return outputStream;
+    }
+
+    private void createDirectory() throws IOException {
+        File directory = file.getParentFile();
+        if (!directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Cannot create " + directory.getAbsolutePath());
+        }
+    }
+
+    private void closeOutputStream() {
+        if (outputStream != null) {
+            try {
+                outputStream.close();
+            } catch (IOException ignored) {}
+            outputStream = null;
+        }
+    }
+
+    private static void writeHeader(DataOutputStream outputStream) throws IOException {
+        outputStream.writeInt(MAGIC);
+        outputStream.writeInt(VERSION);
+    }
+
+    private static void writeEntry(
+            DataOutputStream outputStream,
+            String id,
+            FileStorage.Entry entry
+    ) throws IOException {
+        outputStream.writeUTF(id);
+        outputStream.writeLong(entry.size);
+        outputStream.writeLong(entry.modified);
+    }
+
+    private static void writeExpiration(
+            DataOutputStream outputStream,
+            String id,
+            long expiresAt
+    ) throws IOException {
+        outputStream.writeByte(OP_EXPIRE);
+        outputStream.writeUTF(id);
+        outputStream.writeLong(expiresAt);
+    }
+
+    @NonNull
+    private File getTempFile() {
+        return new File(file.getPath() + TEMP_SUFFIX);
+    }
+
+}
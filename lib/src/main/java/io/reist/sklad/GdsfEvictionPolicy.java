@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * GreedyDual-Size-Frequency. Each object gets the priority {@code L + frequency / length} where
+ * {@code L} is the priority of the last evicted object, and the object with the lowest priority
+ * goes first. Large objects which are rarely used are evicted before small popular ones, which
+ * makes more objects fit into the storage. {@code L} keeps growing, so objects which were
+ * popular long ago eventually become victims too.
+ */
+public class GdsfEvictionPolicy implements EvictionPolicy {
+
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    private final TreeSet<Entry> queue = new TreeSet<>(new Comparator<Entry>() {
+
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            int result = Double.compare(e1.priority, e2.priority);
+            if (result != 0) {
+                return result;
+            }
+            return e1.serial < e2.serial ? -1 : (e1.serial == e2.serial ? 0 : 1);
+        }
+
+    });
+
+    private double inflation;
+
+    private long serial;
+
+    @Override
+    public synchronized void onWrite(@NonNull String id, long length) {
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            entry = new Entry(id);
+            entries.put(id, entry);
+        } else {
+            queue.remove(entry);
+        }
+        entry.length = Math.max(length, 1);
+        touch(entry);
+    }
+
+    @Override
+    public synchronized void onAccess(@NonNull String id) {
+        Entry entry = entries.get(id);
+        if (entry != null) {
+            queue.remove(entry);
+            touch(entry);
+        }
+    }
+
+    private void touch(Entry entry) {
+        entry.frequency++;
+        entry.priority = inflation + (double) entry.frequency / entry.length;
+        entry.serial = serial++;
+        queue.add(entry);
+    }
+
+    @Override
+    public synchronized void onRemove(@NonNull String id) {
+        Entry entry = entries.remove(id);
+        if (entry != null) {
+            queue.remove(entry);
+        }
+    }
+
+    @Override
+    public synchronized void onEvict(@NonNull String id) {
+        Entry entry = entries.remove(id);
+        if (entry != null) {
+            queue.remove(entry);
+            inflation = Math.max(inflation, entry.priority);
+        }
+    }
+
+    @Override
+    public synchronized void onClear() {
+        entries.clear();
+        queue.clear();
+        inflation = 0;
+    }
+
+    @Nullable
+    @Override
+    public synchronized String selectVictim(@NonNull Filter filter) {
+        for (Entry entry : queue) {
+            if (filter.isEvictable(entry.id)) {
+                return entry.id;
+            }
+        }
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public String peekVictim(@NonNull Filter filter) {
+        return selectVictim(filter);
+    }
+
+    private static class Entry {
+
+        final String id;
+
+        long length;
+        long frequency;
+        double priority;
+        long serial;
+
+        Entry(String id) {
+            this.id = id;
+        }
+
+    }
+
+}
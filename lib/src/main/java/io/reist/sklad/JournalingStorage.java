@@ -1,5 +1,8 @@
 package io.reist.sklad;
 
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
 /**
  * Created by reist on 17.04.17.
  */
@@ -8,6 +11,17 @@ public interface JournalingStorage extends Storage {
 
     long getUsedSpace();
 
+    /**
+     * @return the number of bytes of the object or -1 if there is no such object
+     */
+    long getLength(@NonNull String id);
+
     String getOldestId();
 
+    /**
+     * @return the oldest object accepted by the filter or null if there is none
+     */
+    @Nullable
+    String getOldestId(@NonNull EvictionPolicy.Filter filter);
+
 }
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+/**
+ * An input stream which knows the size of the object it reads, e.g. from the Content-Length
+ * header.
+ *
+ * @see Storages#getLength(java.io.InputStream)
+ */
+public interface LengthAware {
+
+    /**
+     * @return the number of bytes the stream has had when it was opened or -1 if it's unknown
+     */
+    long getLength();
+
+}
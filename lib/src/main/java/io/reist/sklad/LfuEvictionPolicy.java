@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Evicts the object which has been used the least number of times. Among objects used equally
+ * often the least recently used one goes first.
+ */
+public class LfuEvictionPolicy implements EvictionPolicy {
+
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    private final TreeSet<Entry> queue = new TreeSet<>(new Comparator<Entry>() {
+
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            if (e1.frequency != e2.frequency) {
+                return e1.frequency < e2.frequency ? -1 : 1;
+            }
+            return e1.serial < e2.serial ? -1 : (e1.serial == e2.serial ? 0 : 1);
+        }
+
+    });
+
+    private long serial;
+
+    @Override
+    public synchronized void onWrite(@NonNull String id, long length) {
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            entry = new Entry(id);
+            entries.put(id, entry);
+        } else {
+            queue.remove(entry);
+        }
+        touch(entry);
+    }
+
+    @Override
+    public synchronized void onAccess(@NonNull String id) {
+        Entry entry = entries.get(id);
+        if (entry != null) {
+            queue.remove(entry);
+            touch(entry);
+        }
+    }
+
+    private void touch(Entry entry) {
+        entry.frequency++;
+        entry.serial = serial++;
+        queue.add(entry);
+    }
+
+    @Override
+    public synchronized void onRemove(@NonNull String id) {
+        Entry entry = entries.remove(id);
+        if (entry != null) {
+            queue.remove(entry);
+        }
+    }
+
+    @Override
+    public void onEvict(@NonNull String id) {
+        onRemove(id);
+    }
+
+    @Override
+    public synchronized void onClear() {
+        entries.clear();
+        queue.clear();
+    }
+
+    @Nullable
+    @Override
+    public synchronized String selectVictim(@NonNull Filter filter) {
+        for (Entry entry : queue) {
+            if (filter.isEvictable(entry.id)) {
+                return entry.id;
+            }
+        }
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public String peekVictim(@NonNull Filter filter) {
+        return selectVictim(filter);
+    }
+
+    private static class Entry {
+
+        final String id;
+
+        long frequency;
+        long serial;
+
+        Entry(String id) {
+            this.id = id;
+        }
+
+    }
+
+}
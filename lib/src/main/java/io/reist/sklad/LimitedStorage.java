@@ -2,35 +2,251 @@ package io.reist.sklad;
 
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.util.Log;
 
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by reist on 17.04.17.
  */
 
-public class LimitedStorage implements Storage {
+public class LimitedStorage implements RangedStorage, ChannelStorage, SizedStorage {
+
+    private static final String TAG = LimitedStorage.class.getSimpleName();
+
+    /**
+     * Output streams reserve space in blocks of this size while there is free space, so that
+     * most writes don't touch the shared accounting.
+     */
+    static final int RESERVATION_BLOCK_SIZE = 64 * 1024;
+
+    private static final long KEEP_ALIVE = 30; // seconds
+
+    /**
+     * The time after which the sweeper looks again at expired objects which it couldn't delete
+     * because they were in use, in milliseconds.
+     */
+    private static final long SWEEP_RETRY_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+
+    /**
+     * The longest time the sweeper deletes expired objects before it lets other threads use
+     * the storage.
+     */
+    private static final long SWEEP_TIME_BUDGET = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * The namespace of all objects unless a {@link Classifier} says otherwise
+     */
+    public static final String DEFAULT_NAMESPACE = "";
+
+    private static final Classifier DEFAULT_CLASSIFIER = new Classifier() {
+
+        @NonNull
+        @Override
+        public String classify(@NonNull String id) {
+            return DEFAULT_NAMESPACE;
+        }
+
+    };
 
     private final JournalingStorage journalingStorage;
 
-    private long capacity;
+    @Nullable
+    private final EvictionPolicy evictionPolicy;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * The space reserved by open output streams. Objects become visible in
+     * {@link JournalingStorage#getUsedSpace()} when their streams are closed, at the same time
+     * their reservations are returned.
+     */
+    private final AtomicLong reservedSpace = new AtomicLong();
+
+    private final Object evictionLock = new Object();
+
+    private final ReferenceCounter writers = new ReferenceCounter();
+
+    private final ReferenceCounter readers = new ReferenceCounter();
+
+    private final ExpiryIndex expiryIndex = new ExpiryIndex();
+
+    /**
+     * Set once the expiration times persisted by the wrapped storage are in
+     * {@link #expiryIndex}, they are loaded on first use.
+     */
+    private volatile boolean expirationsLoaded;
+
+    private final Object sweepLock = new Object();
+
+    /**
+     * The next sweep and its time, guarded by {@link #sweepLock}
+     */
+    @Nullable
+    private ScheduledFuture<?> scheduledSweep;
+    private long scheduledSweepTime;
+
+    private final Runnable sweepTask = new Runnable() {
+
+        @Override
+        public void run() {
+            synchronized (sweepLock) {
+                scheduledSweep = null;
+            }
+            long next = sweep();
+            if (next != Long.MAX_VALUE) {
+                scheduleSweep(next);
+            }
+        }
+
+    };
+
+    private volatile long defaultTimeToLive;
+
+    private final Namespaces namespaces = new Namespaces(DEFAULT_CLASSIFIER);
+
+    private volatile boolean namespacesEnabled;
+
+    private final EvictionPolicy.Filter evictableFilter = new EvictionPolicy.Filter() {
+
+        @Override
+        public boolean isEvictable(@NonNull String id) {
+            return LimitedStorage.this.isEvictable(id);
+        }
+
+    };
+
+    /**
+     * Accepts evictable objects which don't belong to a namespace within its guaranteed space.
+     */
+    private final EvictionPolicy.Filter unguaranteedFilter = new EvictionPolicy.Filter() {
+
+        @Override
+        public boolean isEvictable(@NonNull String id) {
+            return LimitedStorage.this.isEvictable(id) &&
+                    (!namespacesEnabled || count(id) && !namespaces.isGuaranteed(id));
+        }
+
+    };
+
+    /**
+     * Counts objects which aren't known to namespaces yet, accepts the ones which could be
+     * evicted. All objects are counted once it has rejected them all.
+     */
+    private final EvictionPolicy.Filter uncountedFilter = new EvictionPolicy.Filter() {
+
+        @Override
+        public boolean isEvictable(@NonNull String id) {
+            return !namespaces.contains(id) &&
+                    count(id) &&
+                    LimitedStorage.this.isEvictable(id) &&
+                    !namespaces.isGuaranteed(id);
+        }
+
+    };
+
+    /**
+     * True while there may be objects which were written before the classifier was set and
+     * haven't been counted by their namespaces
+     */
+    private volatile boolean uncountedObjects;
+
+    private final AtomicBoolean evictionScheduled = new AtomicBoolean();
+
+    /**
+     * Runs background eviction and sweeps, a single daemon thread which exits when idle.
+     */
+    private final ScheduledThreadPoolExecutor worker;
+
+    private volatile long capacity;
+
+    private volatile long lowWatermark = -1;
+    private volatile long highWatermark = -1;
 
     public LimitedStorage(JournalingStorage journalingStorage, long capacity) {
+        this(journalingStorage, capacity, null);
+    }
+
+    /**
+     * @param evictionPolicy    chooses objects to delete when space is needed. Objects unknown to
+     *                          the policy, e.g. the ones written before the storage was created,
+     *                          are deleted oldest first after the policy runs out of victims.
+     *                          If null, objects are always deleted oldest first. Objects which
+     *                          are being read or written are skipped either way.
+     */
+    public LimitedStorage(
+            JournalingStorage journalingStorage,
+            long capacity,
+            @Nullable EvictionPolicy evictionPolicy
+    ) {
         this.journalingStorage = journalingStorage;
         this.capacity = capacity;
+        this.evictionPolicy = evictionPolicy;
+        this.worker = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                Thread thread = new Thread(r, "LimitedStorage worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+
+        });
+        this.worker.setKeepAliveTime(KEEP_ALIVE, TimeUnit.SECONDS);
+        this.worker.allowCoreThreadTimeOut(true);
     }
 
     @Override
     public boolean contains(@NonNull String id) throws IOException {
-        return journalingStorage.contains(id);
+        return !isExpired(id) && journalingStorage.contains(id);
     }
 
     @NonNull
     @Override
     public OutputStream openOutputStream(@NonNull String id) throws IOException {
-        final OutputStream outputStreamToWrap = journalingStorage.openOutputStream(id);
+        return openOutputStream(id, -1);
+    }
+
+    @NonNull
+    @Override
+    public OutputStream openOutputStream(@NonNull String id, long expectedLength) throws IOException {
+        return openOutputStream(id, expectedLength, defaultTimeToLive);
+    }
+
+    /**
+     * Space for the expected number of bytes is reserved once when the stream is opened. Writes
+     * reserve more space in blocks only when they exceed the expected size. The unused part is
+     * returned when the stream is closed. The object isn't evicted while the stream is open.
+     *
+     * If there is not enough space and nothing can be evicted, writes fail with an
+     * {@link IOException}. The only exception is a stream which is the only one holding a
+     * reservation, it may exceed the capacity, so that an object larger than the capacity can
+     * still be written.
+     *
+     * @param timeToLive    the number of milliseconds after which the object expires once the
+     *                      stream is closed, 0 or a negative value means never
+     */
+    @NonNull
+    public OutputStream openOutputStream(
+            @NonNull final String id,
+            final long expectedLength,
+            final long timeToLive
+    ) throws IOException {
         if (capacity == 0) {
             return new OutputStream() {
 
@@ -46,29 +262,76 @@ public class LimitedStorage implements Storage {
 
             };
         } else {
+            writers.acquire(id);
+            final long initialReservation;
+            final OutputStream outputStreamToWrap;
+            try {
+                initialReservation = expectedLength > 0 ? reserve(expectedLength, 0) : 0;
+                try {
+                    outputStreamToWrap = Storages.openOutputStream(journalingStorage, id, expectedLength);
+                } catch (IOException | RuntimeException e) {
+                    release(initialReservation);
+                    throw e;
+                }
+            } catch (IOException | RuntimeException e) {
+                writers.release(id);
+                throw e;
+            }
             return new OutputStream() {
 
+                private long reserved = initialReservation;
+
+                private long available = initialReservation;
+
+                private long written;
+
+                private boolean closed;
+
                 @Override
                 public void write(@NonNull byte[] b) throws IOException {
-                    allocate(b.length);
+                    take(b.length);
                     outputStreamToWrap.write(b);
                 }
 
                 @Override
                 public void write(@NonNull byte[] b, int off, int len) throws IOException {
-                    allocate(len);
+                    take(len);
                     outputStreamToWrap.write(b, off, len);
                 }
 
                 @Override
                 public void write(int b) throws IOException {
-                    allocate(1);
+                    take(1);
                     outputStreamToWrap.write(b);
                 }
 
+                private void take(int len) throws IOException {
+                    if (len > available) {
+                        long amount = reserve(len - available, reserved);
+                        reserved += amount;
+                        available += amount;
+                    }
+                    available -= len;
+                    written += len;
+                }
+
                 @Override
                 public void close() throws IOException {
-                    outputStreamToWrap.close();
+                    if (closed) {
+                        return;
+                    }
+                    closed = true;
+                    try {
+                        outputStreamToWrap.close();
+                        setExpiration(id, timeToLive);
+                    } finally {
+                        release(reserved);
+                        writers.release(id);
+                    }
+                    namespaces.onWrite(id, written);
+                    if (evictionPolicy != null) {
+                        evictionPolicy.onWrite(id, written);
+                    }
                 }
 
                 @Override
@@ -80,48 +343,718 @@ public class LimitedStorage implements Storage {
         }
     }
 
+    /**
+     * The object is pinned until the stream is closed, it isn't evicted while being read.
+     */
     @Nullable
     @Override
     public InputStream openInputStream(@NonNull String id) throws IOException {
-        return journalingStorage.openInputStream(id);
+        if (isExpired(id)) {
+            return recordAccess(id, null);
+        }
+        readers.acquire(id);
+        InputStream inputStream;
+        try {
+            inputStream = journalingStorage.openInputStream(id);
+        } catch (IOException | RuntimeException e) {
+            unpin(id);
+            throw e;
+        }
+        return recordAccess(id, pin(id, inputStream));
+    }
+
+    @Nullable
+    @Override
+    public InputStream openInputStream(@NonNull String id, long offset, long length) throws IOException {
+        if (isExpired(id)) {
+            return recordAccess(id, null);
+        }
+        readers.acquire(id);
+        InputStream inputStream;
+        try {
+            inputStream = Storages.openInputStream(journalingStorage, id, offset, length);
+        } catch (IOException | RuntimeException e) {
+            unpin(id);
+            throw e;
+        }
+        return recordAccess(id, pin(id, inputStream));
+    }
+
+    @Nullable
+    @Override
+    public ReadableByteChannel openReadChannel(@NonNull String id) throws IOException {
+        if (isExpired(id)) {
+            return recordAccess(id, null);
+        }
+        readers.acquire(id);
+        ReadableByteChannel channel;
+        try {
+            channel = Storages.openReadChannel(journalingStorage, id);
+        } catch (IOException | RuntimeException e) {
+            unpin(id);
+            throw e;
+        }
+        return recordAccess(id, pin(id, channel));
+    }
+
+    @Override
+    public int read(@NonNull String id, @NonNull ByteBuffer dst, long position) throws IOException {
+        if (isExpired(id)) {
+            recordAccess(id, false);
+            throw new FileNotFoundException(id + " has expired");
+        }
+        int result;
+        readers.acquire(id);
+        try {
+            result = Storages.read(journalingStorage, id, dst, position);
+        } catch (FileNotFoundException e) {
+            recordAccess(id, false);
+            throw e;
+        } finally {
+            unpin(id);
+        }
+        recordAccess(id, true);
+        return result;
+    }
+
+    @Override
+    public long transferTo(@NonNull String id, @NonNull WritableByteChannel target) throws IOException {
+        if (isExpired(id)) {
+            recordAccess(id, false);
+            return -1;
+        }
+        long result;
+        readers.acquire(id);
+        try {
+            result = Storages.transferTo(journalingStorage, id, target);
+        } finally {
+            unpin(id);
+        }
+        recordAccess(id, result != -1);
+        return result;
+    }
+
+    @Nullable
+    private InputStream pin(@NonNull final String id, @Nullable InputStream inputStream) {
+
+        if (inputStream == null) {
+            unpin(id);
+            return null;
+        }
+
+        return new FilterInputStream(inputStream) {
+
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    super.close();
+                } finally {
+                    unpin(id);
+                }
+            }
+
+        };
+
+    }
+
+    @Nullable
+    private ReadableByteChannel pin(@NonNull final String id, @Nullable final ReadableByteChannel channel) {
+
+        if (channel == null) {
+            unpin(id);
+            return null;
+        }
+
+        return new ReadableByteChannel() {
+
+            private boolean closed;
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                return channel.read(dst);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+                    closed = true;
+                }
+                try {
+                    channel.close();
+                } finally {
+                    unpin(id);
+                }
+            }
+
+        };
+
+    }
+
+    /**
+     * Objects skipped by eviction because they were being read are evicted when their last
+     * reader is closed.
+     */
+    private void unpin(@NonNull String id) {
+
+        if (readers.release(id) > 0) {
+            return;
+        }
+
+        long capacity = this.capacity;
+        if (capacity == -1) {
+            return;
+        }
+
+        try {
+            if (getUsage() > capacity) {
+                evict(capacity);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to reclaim space", e);
+        }
+
+        if (highWatermark >= 0 && getUsage() > highWatermark) {
+            scheduleEviction();
+        }
+
+    }
+
+    private <T> T recordAccess(@NonNull String id, @Nullable T result) {
+        recordAccess(id, result != null);
+        return result;
+    }
+
+    private void recordAccess(@NonNull String id, boolean hit) {
+        if (hit) {
+            hitCount.incrementAndGet();
+            if (evictionPolicy != null) {
+                evictionPolicy.onAccess(id);
+            }
+        } else {
+            missCount.incrementAndGet();
+        }
     }
 
     @Override
     public boolean delete(@NonNull String id) throws IOException {
-        return journalingStorage.delete(id);
+        boolean deleted = journalingStorage.delete(id);
+        expiryIndex.remove(id);
+        namespaces.onRemove(id, false);
+        if (evictionPolicy != null) {
+            evictionPolicy.onRemove(id);
+        }
+        return deleted;
     }
 
     @Override
     public void deleteAll() throws IOException {
         journalingStorage.deleteAll();
+        expiryIndex.clear();
+        namespaces.clear();
+        if (evictionPolicy != null) {
+            evictionPolicy.onClear();
+        }
     }
 
-    private void allocate(int len) throws IOException {
+    private boolean isExpired(@NonNull String id) {
+        loadExpirations();
+        return expiryIndex.isExpired(id, System.currentTimeMillis());
+    }
 
-        if (capacity == -1) {
+    private void setExpiration(@NonNull String id, long timeToLive) {
+        loadExpirations();
+        if (timeToLive > 0) {
+            long expiresAt = System.currentTimeMillis() + timeToLive;
+            expiryIndex.put(id, expiresAt);
+            Storages.setExpiration(journalingStorage, id, expiresAt);
+            scheduleSweep(expiresAt);
+        } else {
+            // a rewritten object has lost its persisted expiration time already
+            expiryIndex.remove(id);
+        }
+    }
+
+    /**
+     * Reads the expiration times persisted by the wrapped storage, so that objects which have
+     * expired while the process wasn't running aren't served.
+     */
+    private void loadExpirations() {
+        if (expirationsLoaded) {
+            return;
+        }
+        synchronized (sweepLock) {
+            if (expirationsLoaded) {
+                return;
+            }
+            Map<String, Long> expirations = Storages.getExpirations(journalingStorage);
+            for (Map.Entry<String, Long> expiration : expirations.entrySet()) {
+                expiryIndex.put(expiration.getKey(), expiration.getValue());
+            }
+            expirationsLoaded = true;
+        }
+        scheduleSweep(expiryIndex.getNextExpiration());
+    }
+
+    /**
+     * Makes the sweeper run at the given time unless it's going to run earlier.
+     */
+    private void scheduleSweep(long time) {
+        if (time == Long.MAX_VALUE) {
             return;
         }
+        synchronized (sweepLock) {
+            if (scheduledSweep != null) {
+                if (scheduledSweepTime <= time) {
+                    return;
+                }
+                scheduledSweep.cancel(false);
+                worker.purge();
+            }
+            scheduledSweepTime = time;
+            scheduledSweep = worker.schedule(
+                    sweepTask,
+                    Math.max(time - System.currentTimeMillis(), 0),
+                    TimeUnit.MILLISECONDS
+            );
+        }
+    }
+
+    /**
+     * Deletes expired objects until there are no more or the time budget is spent. Objects which
+     * are being read or written are left for a later sweep.
+     *
+     * @return the time of the next sweep or {@link Long#MAX_VALUE} if no object expires
+     */
+    private long sweep() {
+
+        long start = System.nanoTime();
+
+        while (System.nanoTime() - start < SWEEP_TIME_BUDGET) {
+            long now = System.currentTimeMillis();
+            synchronized (evictionLock) {
+                String id = expiryIndex.findExpired(now, evictableFilter);
+                if (id == null) {
+                    // expired objects which are still there are in use
+                    long next = expiryIndex.getNextExpiration();
+                    return next <= now ? now + SWEEP_RETRY_INTERVAL : next;
+                }
+                try {
+                    deleteExpired(id);
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to delete expired " + id, e);
+                    return now + SWEEP_RETRY_INTERVAL;
+                }
+            }
+        }
+
+        // let other threads use the storage
+        return System.currentTimeMillis() + TimeUnit.NANOSECONDS.toMillis(SWEEP_TIME_BUDGET);
+
+    }
+
+    private void deleteExpired(@NonNull String id) throws IOException {
+        if (!journalingStorage.delete(id) && journalingStorage.contains(id)) {
+            throw new IOException("Unable to delete " + id);
+        }
+        expiryIndex.remove(id);
+        namespaces.onRemove(id, false);
+        if (evictionPolicy != null) {
+            evictionPolicy.onRemove(id);
+        }
+    }
+
+    /**
+     * Reserves at least {@code len} bytes, a whole block if there is enough space below the high
+     * watermark. Evicts objects on the calling thread only if the capacity would be exceeded.
+     * Otherwise, passing the high watermark starts eviction in the background.
+     *
+     * @param reservedByStream  the space already reserved by the calling stream
+     * @return the number of bytes reserved
+     */
+    private long reserve(long len, long reservedByStream) throws IOException {
+
+        long capacity = this.capacity;
+        if (capacity == -1) {
+            return 0;
+        }
 
-        while (capacity - journalingStorage.getUsedSpace() < len) {
-            String oldestId = journalingStorage.getOldestId();
-            if (oldestId == null) {
-                break;
-            } else {
-                if (!journalingStorage.delete(oldestId)) {
-                    throw new IOException("Unable to free space");
+        long amount = Math.max(len, Math.min(RESERVATION_BLOCK_SIZE, getHighWatermark() - getUsage()));
+        if (!tryReserve(amount, capacity)) {
+            amount = len;
+            synchronized (evictionLock) {
+                while (!tryReserve(amount, capacity)) {
+                    if (!evictOne()) {
+                        if (reservedSpace.compareAndSet(reservedByStream, reservedByStream + amount)) {
+                            break;
+                        }
+                        throw new IOException("Not enough space");
+                    }
                 }
             }
         }
 
+        if (highWatermark >= 0 && getUsage() > highWatermark) {
+            scheduleEviction();
+        }
+
+        return amount;
+
+    }
+
+    /**
+     * The reserved space is read before the used space. A stream being closed adds its object to
+     * the used space before returning its reservation, so the sum can only be overestimated.
+     */
+    private boolean tryReserve(long len, long limit) {
+        while (true) {
+            long reserved = reservedSpace.get();
+            if (journalingStorage.getUsedSpace() + reserved + len > limit) {
+                return false;
+            }
+            if (reservedSpace.compareAndSet(reserved, reserved + len)) {
+                return true;
+            }
+        }
+    }
+
+    private void release(long len) {
+        if (len > 0) {
+            reservedSpace.addAndGet(-len);
+        }
+    }
+
+    private long getUsage() {
+        return reservedSpace.get() + journalingStorage.getUsedSpace();
+    }
+
+    private boolean isEvictable(@NonNull String id) {
+        return writers.get(id) == 0 && readers.get(id) == 0;
+    }
+
+    /**
+     * Deletes objects until the used and reserved space doesn't exceed the limit or there is
+     * nothing left to delete. The lock is released between objects, so that a writer which
+     * has to evict synchronously doesn't wait for the whole pass.
+     */
+    private void evict(long limit) throws IOException {
+        while (true) {
+            synchronized (evictionLock) {
+                if (getUsage() <= limit || !evictOne()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Must be called with {@link #evictionLock} held, so that no object is deleted twice.
+     *
+     * @return false if nothing can be evicted
+     */
+    private boolean evictOne() throws IOException {
+
+        loadExpirations();
+        String expired = expiryIndex.findExpired(System.currentTimeMillis(), evictableFilter);
+        if (expired != null) {
+            deleteExpired(expired);
+            return true;
+        }
+
+        String victim = null;
+        if (namespacesEnabled && uncountedObjects) {
+            // objects which were there before are the coldest ones
+            victim = journalingStorage.getOldestId(uncountedFilter);
+            uncountedObjects = victim != null;
+        }
+        if (victim == null && namespacesEnabled) {
+            victim = namespaces.selectVictim(evictionPolicy, evictableFilter, false);
+        }
+        if (victim == null && evictionPolicy != null) {
+            victim = evictionPolicy.selectVictim(unguaranteedFilter);
+        }
+        if (victim == null) {
+            victim = journalingStorage.getOldestId(unguaranteedFilter);
+            if (victim == null) {
+                return false;
+            }
+        }
+
+        // the victim may have been deleted from the wrapped storage directly
+        if (!journalingStorage.delete(victim) && journalingStorage.contains(victim)) {
+            throw new IOException("Unable to free space");
+        }
+
+        expiryIndex.remove(victim);
+        namespaces.onRemove(victim, true);
+        if (evictionPolicy != null) {
+            evictionPolicy.onEvict(victim);
+        }
+
+        return true;
+
+    }
+
+    /**
+     * Counts an object by its namespace unless it's counted already.
+     *
+     * @return false if there is no such object
+     */
+    private boolean count(@NonNull String id) {
+        if (namespaces.contains(id)) {
+            return true;
+        }
+        long length = journalingStorage.getLength(id);
+        if (length < 0) {
+            return false;
+        }
+        namespaces.onFound(id, length);
+        return true;
+    }
+
+    private void scheduleEviction() {
+        if (evictionScheduled.compareAndSet(false, true)) {
+            worker.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        evict(getLowWatermark());
+                    } catch (IOException e) {
+                        Log.w(TAG, "Background eviction failed", e);
+                    } finally {
+                        evictionScheduled.set(false);
+                    }
+                }
+
+            });
+        }
+    }
+
+    /**
+     * Doesn't change the state of the eviction policy.
+     *
+     * @return  the object which would be deleted first to store {@code length} more bytes or
+     *          null if there is enough free space or nothing can be deleted
+     */
+    @Nullable
+    public String getVictim(long length) {
+        long capacity = this.capacity;
+        if (capacity == -1 || capacity - getUsage() >= length) {
+            return null;
+        }
+        String victim = null;
+        if (namespacesEnabled && uncountedObjects) {
+            victim = journalingStorage.getOldestId(uncountedFilter);
+        }
+        if (victim == null && namespacesEnabled) {
+            victim = namespaces.selectVictim(evictionPolicy, evictableFilter, true);
+        }
+        if (victim == null && evictionPolicy != null) {
+            victim = evictionPolicy.peekVictim(unguaranteedFilter);
+        }
+        return victim == null ? journalingStorage.getOldestId(unguaranteedFilter) : victim;
     }
 
     public void setCapacity(long capacity) throws IOException {
         this.capacity = capacity;
-        allocate(0);
+        if (capacity != -1) {
+            evict(capacity);
+        }
     }
 
     public long getCapacity() {
         return capacity;
     }
 
+    /**
+     * When the used and reserved space exceeds the high watermark, objects are evicted in the
+     * background until it drops to the low watermark. Writers wait for eviction only when the
+     * capacity would be exceeded. A negative value means the capacity, which is the default, so
+     * that eviction happens only on the writing threads.
+     */
+    public void setWatermarks(long lowWatermark, long highWatermark) {
+        if (lowWatermark > highWatermark && highWatermark >= 0) {
+            throw new IllegalArgumentException("Low watermark is greater than high watermark");
+        }
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+    }
+
+    public long getLowWatermark() {
+        return lowWatermark < 0 ? capacity : lowWatermark;
+    }
+
+    public long getHighWatermark() {
+        return highWatermark < 0 ? capacity : highWatermark;
+    }
+
+    /**
+     * @param timeToLive    the number of milliseconds after which objects expire once written,
+     *                      0 or a negative value means never. It applies to objects written
+     *                      after the call. Expired objects are treated as missing and deleted in
+     *                      the background. Expiration times are persisted by the wrapped
+     *                      storage if it's an {@link ExpiringStorage}, e.g. a
+     *                      {@link FileStorage} with a journal, otherwise objects written before
+     *                      the storage was created never expire.
+     */
+    public void setDefaultTimeToLive(long timeToLive) {
+        this.defaultTimeToLive = timeToLive;
+    }
+
+    public long getDefaultTimeToLive() {
+        return defaultTimeToLive;
+    }
+
+    /**
+     * Splits the capacity into namespaces. Each namespace can use its guaranteed space, see
+     * {@link #setGuaranteedSpace(String, long)}, and borrow the space which isn't used by
+     * others. When space is needed, objects are evicted from the namespace which exceeds its
+     * guaranteed space the most. Objects of a namespace which is within its guaranteed space are
+     * never evicted. Objects written before the classifier was set are classified when space is
+     * needed for the first time and are evicted first, oldest first, unless their namespaces are
+     * within the guaranteed space.
+     *
+     * @param classifier    tells the namespace of an object, null to put all objects into
+     *                      {@link #DEFAULT_NAMESPACE} and disable quotas
+     */
+    public void setClassifier(@Nullable Classifier classifier) {
+        synchronized (evictionLock) {
+            namespaces.setClassifier(classifier == null ? DEFAULT_CLASSIFIER : classifier);
+            namespacesEnabled = classifier != null;
+            uncountedObjects = namespacesEnabled;
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the space is negative or the guaranteed space of all
+     *          namespaces would exceed the capacity
+     */
+    public void setGuaranteedSpace(@NonNull String namespace, long space) {
+        namespaces.setGuaranteedSpace(namespace, space, capacity);
+    }
+
+    public long getGuaranteedSpace(@NonNull String namespace) {
+        return namespaces.getGuaranteedSpace(namespace);
+    }
+
+    /**
+     * @return  the space used by objects of the namespace which were written through this
+     *          storage or found by eviction
+     */
+    public long getUsedSpace(@NonNull String namespace) {
+        return namespaces.getUsedSpace(namespace);
+    }
+
+    /**
+     * @return  the number of objects of the namespace which were evicted to free space
+     */
+    public long getEvictionCount(@NonNull String namespace) {
+        return namespaces.getEvictionCount(namespace);
+    }
+
+    /**
+     * @return  the number of open input streams and channels of the object
+     */
+    public int getPinCount(@NonNull String id) {
+        return readers.get(id);
+    }
+
+    /**
+     * @return  the number of objects which have open input streams or channels
+     */
+    public int getPinnedObjectCount() {
+        return readers.size();
+    }
+
+    /**
+     * @return  the space reserved by open output streams
+     */
+    public long getReservedSpace() {
+        return reservedSpace.get();
+    }
+
+    @Nullable
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    /**
+     * @return  the number of reads which found the requested object
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return  the number of reads which didn't find the requested object
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return  the share of reads which found the requested object or 0 if there were no reads
+     */
+    public double getHitRatio() {
+        long hits = hitCount.get();
+        long total = hits + missCount.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public void resetStats() {
+        hitCount.set(0);
+        missCount.set(0);
+    }
+
+    /**
+     * Tells which namespace an object belongs to.
+     *
+     * @see #setClassifier(Classifier)
+     */
+    public interface Classifier {
+
+        @NonNull
+        String classify(@NonNull String id);
+
+    }
+
+    /**
+     * Puts objects into namespaces named after the first of the prefixes their ids start with.
+     * Objects with other ids go to {@link #DEFAULT_NAMESPACE}.
+     */
+    public static class PrefixClassifier implements Classifier {
+
+        private final String[] prefixes;
+
+        public PrefixClassifier(@NonNull String... prefixes) {
+            this.prefixes = prefixes.clone();
+        }
+
+        @NonNull
+        @Override
+        public String classify(@NonNull String id) {
+            for (String prefix : prefixes) {
+                if (id.startsWith(prefix)) {
+                    return prefix;
+                }
+            }
+            return DEFAULT_NAMESPACE;
+        }
+
+    }
+
 }
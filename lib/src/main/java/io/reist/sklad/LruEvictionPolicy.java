@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Evicts the object which hasn't been read or written for the longest time.
+ */
+public class LruEvictionPolicy implements EvictionPolicy {
+
+    private final Map<String, Boolean> queue = new LinkedHashMap<>(16, 0.75f, true);
+
+    @Override
+    public synchronized void onWrite(@NonNull String id, long length) {
+        queue.put(id, Boolean.TRUE);
+    }
+
+    @Override
+    public synchronized void onAccess(@NonNull String id) {
+        queue.get(id);
+    }
+
+    @Override
+    public synchronized void onRemove(@NonNull String id) {
+        queue.remove(id);
+    }
+
+    @Override
+    public void onEvict(@NonNull String id) {
+        onRemove(id);
+    }
+
+    @Override
+    public synchronized void onClear() {
+        queue.clear();
+    }
+
+    @Nullable
+    @Override
+    public synchronized String selectVictim(@NonNull Filter filter) {
+        for (String id : queue.keySet()) {
+            if (filter.isEvictable(id)) {
+                return id;
+            }
+        }
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public String peekVictim(@NonNull Filter filter) {
+        return selectVictim(filter);
+    }
+
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.InvalidMarkException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps read-only mappings of small files. The total size of cached mappings is bounded, the
+ * least recently used mappings which aren't being read are evicted first.
+ *
+ * A mapping outlives its eviction or invalidation while somebody reads it. Since files are
+ * replaced by renaming, such a reader keeps seeing the version of the object it has opened.
+ */
+class MappedBufferCache {
+
+    private final long maxObjectSize;
+    private final long maxSize;
+
+    /**
+     * Iteration order is the access order, the least recently used mapping comes first.
+     */
+    private final Map<String, Mapping> mappings = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long size;
+
+    /**
+     * Incremented on every invalidation, so that a file which has been mapped while it was
+     * being replaced doesn't get into the cache.
+     */
+    private long generation;
+
+    MappedBufferCache(long maxObjectSize, long maxSize) {
+        this.maxObjectSize = maxObjectSize;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns a cached mapping or maps the file. The mapping must be given back with
+     * {@link #release(Mapping)}.
+     *
+     * @return null if the file is too large to be mapped
+     * @throws java.io.FileNotFoundException if there is no such file
+     */
+    @Nullable
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    Mapping acquire(@NonNull String id, @NonNull File file) throws IOException {
+
+        long generation;
+
+        synchronized (this) {
+            Mapping mapping = mappings.get(id);
+            if (mapping != null) {
+                mapping.refCount++;
+                return mapping;
+            }
+            generation = this.generation;
+        }
+
+        FileInputStream inputStream = new FileInputStream(file);
+        MappedByteBuffer buffer;
+
+        try {
+            FileChannel channel = inputStream.getChannel();
+            long length = channel.size();
+            if (length > maxObjectSize || length > maxSize) {
+                return null;
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } finally {
+            inputStream.close();
+        }
+
+        synchronized (this) {
+
+            Mapping mapping = new Mapping(id, buffer);
+            mapping.refCount = 1;
+
+            if (generation == this.generation && !mappings.containsKey(id) && evict(buffer.capacity())) {
+                mapping.cached = true;
+                mappings.put(id, mapping);
+                size += buffer.capacity();
+            }
+
+            return mapping;
+
+        }
+
+    }
+
+    synchronized void release(@NonNull Mapping mapping) {
+        mapping.refCount--;
+    }
+
+    synchronized void invalidate(@NonNull String id) {
+        generation++;
+        Mapping mapping = mappings.remove(id);
+        if (mapping != null) {
+            mapping.cached = false;
+            size -= mapping.buffer.capacity();
+        }
+    }
+
+    synchronized void invalidateAll() {
+        generation++;
+        for (Mapping mapping : mappings.values()) {
+            mapping.cached = false;
+        }
+        mappings.clear();
+        size = 0;
+    }
+
+    synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Evicts idle mappings until the given number of bytes fits.
+     *
+     * @return false if there isn't enough room even after eviction
+     */
+    private boolean evict(long required) {
+        Iterator<Mapping> iterator = mappings.values().iterator();
+        while (size + required > maxSize && iterator.hasNext()) {
+            Mapping mapping = iterator.next();
+            if (mapping.refCount == 0) {
+                iterator.remove();
+                mapping.cached = false;
+                size -= mapping.buffer.capacity();
+            }
+        }
+        return size + required <= maxSize;
+    }
+
+    static final class Mapping {
+
+        final String id;
+        final MappedByteBuffer buffer;
+
+        int refCount;
+        boolean cached;
+
+        Mapping(String id, MappedByteBuffer buffer) {
+            this.id = id;
+            this.buffer = buffer;
+        }
+
+    }
+
+    /**
+     * Reads a mapping through its own view of the buffer and releases it on close.
+     */
+    static final class MappedInputStream extends InputStream {
+
+        private final MappedBufferCache cache;
+        private final Mapping mapping;
+        private final ByteBuffer buffer;
+
+        private boolean closed;
+
+        MappedInputStream(@NonNull MappedBufferCache cache, @NonNull Mapping mapping, long offset) {
+            this.cache = cache;
+            this.mapping = mapping;
+            this.buffer = mapping.buffer.duplicate();
+            this.buffer.position((int) Math.min(Math.max(offset, 0), buffer.limit()));
+        }
+
+        @Override
+        public int read() throws IOException {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            int count = (int) Math.max(Math.min(n, buffer.remaining()), 0);
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return buffer.remaining();
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            buffer.mark();
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            try {
+                buffer.reset();
+            } catch (InvalidMarkException e) {
+                throw new IOException("Mark has not been set");
+            }
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                cache.release(mapping);
+            }
+        }
+
+    }
+
+}
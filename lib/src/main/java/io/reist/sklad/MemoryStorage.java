@@ -17,21 +17,44 @@
 package io.reist.sklad;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicLong;
 
-public class MemoryStorage implements JournalingStorage {
+import io.reist.sklad.utils.StreamUtils;
 
-    private final Map<String, DataHolder> dataMap = new HashMap<>();
+public class MemoryStorage implements JournalingStorage, RangedStorage, ChannelStorage, SizedStorage {
 
-    private static final AtomicLong TIME = new AtomicLong(1);
+    private static final int MIN_SEGMENT_SIZE = 256;
+    private static final int MAX_SEGMENT_SIZE = 64 * 1024;
+
+    private final ConcurrentMap<String, DataHolder> dataMap = new ConcurrentHashMap<>();
+
+    /**
+     * Guards the modification order list and changes of {@link #dataMap}, lookups don't lock.
+     */
+    private final Object listLock = new Object();
+
+    /**
+     * The oldest object, the list is linked through {@link DataHolder#next}.
+     */
+    private DataHolder head;
+
+    /**
+     * The newest object.
+     */
+    private DataHolder tail;
+
+    private final AtomicLong usedSpace = new AtomicLong();
 
     @Override
     public boolean contains(@NonNull String id) {
@@ -41,12 +64,27 @@ public class MemoryStorage implements JournalingStorage {
     @NonNull
     @Override
     public OutputStream openOutputStream(@NonNull final String id) {
-        return new ByteArrayOutputStream() {
+        return openOutputStream(id, -1);
+    }
+
+    /**
+     * Bytes are written into a list of segments which are published on close, so that the
+     * object is never copied to grow a buffer. If the size is known, the segments fit it.
+     */
+    @NonNull
+    @Override
+    public OutputStream openOutputStream(@NonNull final String id, final long expectedLength) {
+        return new ChunkedOutputStream(MIN_SEGMENT_SIZE, MAX_SEGMENT_SIZE, expectedLength) {
+
+            @NonNull
+            @Override
+            protected ByteBuffer allocateChunk(int size) {
+                return ByteBuffer.allocate(size);
+            }
 
             @Override
-            public void flush() throws IOException {
-                super.flush();
-                dataMap.put(id, new DataHolder(toByteArray(), size(), id));
+            protected void publish(@NonNull ByteBuffer[] chunks, long length) {
+                put(new DataHolder(chunks, length, id));
             }
 
         };
@@ -54,59 +92,164 @@ public class MemoryStorage implements JournalingStorage {
 
     @Override
     public InputStream openInputStream(@NonNull String id) {
+        return openInputStream(id, 0, -1);
+    }
+
+    @Override
+    public InputStream openInputStream(@NonNull String id, long offset, long length) {
+        ChunkedInputStream inputStream = open(id, offset);
+        return inputStream == null ?
+                null :
+                new InterruptibleInputStream(StreamUtils.limit(inputStream, length));
+    }
+
+    @Override
+    public ReadableByteChannel openReadChannel(@NonNull String id) {
+        return open(id, 0);
+    }
+
+    @Override
+    public int read(@NonNull String id, @NonNull ByteBuffer dst, long position) throws IOException {
+        ChunkedInputStream inputStream = open(id, position);
+        if (inputStream == null) {
+            throw new FileNotFoundException(id);
+        }
+        return inputStream.readFully(dst);
+    }
+
+    @Override
+    public long transferTo(@NonNull String id, @NonNull WritableByteChannel target) throws IOException {
         DataHolder dataHolder = dataMap.get(id);
         if (dataHolder == null) {
-            return null;
-        } else {
-            return new InterruptibleInputStream(
-                    new ByteArrayInputStream(dataHolder.data, 0, dataHolder.length)
-            );
+            return -1;
+        }
+        for (ByteBuffer segment : dataHolder.segments) {
+            ByteBuffer buffer = segment.duplicate();
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
         }
+        return dataHolder.length;
+    }
+
+    @Nullable
+    private ChunkedInputStream open(@NonNull String id, long offset) {
+        DataHolder dataHolder = dataMap.get(id);
+        return dataHolder == null ?
+                null :
+                new ChunkedInputStream(dataHolder.segments, dataHolder.length, offset);
     }
 
     @Override
     public boolean delete(@NonNull String id) throws IOException {
-        return dataMap.remove(id) != null;
+        synchronized (listLock) {
+            DataHolder dataHolder = dataMap.remove(id);
+            if (dataHolder == null) {
+                return false;
+            }
+            unlink(dataHolder);
+            usedSpace.addAndGet(-dataHolder.length);
+            return true;
+        }
     }
 
     @Override
     public void deleteAll() throws IOException {
-        dataMap.clear();
+        synchronized (listLock) {
+            dataMap.clear();
+            head = null;
+            tail = null;
+            usedSpace.set(0);
+        }
     }
 
     @Override
     public long getUsedSpace() {
-        int totalSize = 0;
-        for (Map.Entry<String, DataHolder> entry : dataMap.entrySet()) {
-            totalSize += entry.getValue().length;
-        }
-        return totalSize;
+        return usedSpace.get();
+    }
+
+    @Override
+    public long getLength(@NonNull String id) {
+        DataHolder dataHolder = dataMap.get(id);
+        return dataHolder == null ? -1 : dataHolder.length;
     }
 
     @Override
     public String getOldestId() {
-        DataHolder oldest = null;
-        for (Map.Entry<String, DataHolder> entry : dataMap.entrySet()) {
-            DataHolder value = entry.getValue();
-            if (oldest == null || value.modified < oldest.modified) {
-                oldest = entry.getValue();
+        synchronized (listLock) {
+            return head == null ? null : head.id;
+        }
+    }
+
+    @Nullable
+    @Override
+    public String getOldestId(@NonNull EvictionPolicy.Filter filter) {
+        synchronized (listLock) {
+            for (DataHolder node = head; node != null; node = node.next) {
+                if (filter.isEvictable(node.id)) {
+                    return node.id;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Adds or replaces an object making it the newest one.
+     */
+    private void put(@NonNull DataHolder dataHolder) {
+        synchronized (listLock) {
+            DataHolder previous = dataMap.put(dataHolder.id, dataHolder);
+            long delta = dataHolder.length;
+            if (previous != null) {
+                unlink(previous);
+                delta -= previous.length;
+            }
+            dataHolder.prev = tail;
+            if (tail == null) {
+                head = dataHolder;
+            } else {
+                tail.next = dataHolder;
             }
+            tail = dataHolder;
+            usedSpace.addAndGet(delta);
         }
-        return oldest == null ? null : oldest.id;
+    }
+
+    private void unlink(@NonNull DataHolder dataHolder) {
+        if (dataHolder.prev == null) {
+            head = dataHolder.next;
+        } else {
+            dataHolder.prev.next = dataHolder.next;
+        }
+        if (dataHolder.next == null) {
+            tail = dataHolder.prev;
+        } else {
+            dataHolder.next.prev = dataHolder.prev;
+        }
+        dataHolder.prev = null;
+        dataHolder.next = null;
     }
 
     static class DataHolder {
 
-        final byte[] data;
-        final int length;
-        final long modified;
+        /**
+         * Flipped segments, each contains bytes of the object between its position and limit.
+         */
+        final ByteBuffer[] segments;
+        final long length;
         final String id;
 
-        public DataHolder(byte[] data, int length, String id) {
-            this.data = data;
+        /**
+         * Neighbours in the modification order, guarded by {@link MemoryStorage#listLock}.
+         */
+        DataHolder prev;
+        DataHolder next;
+
+        public DataHolder(ByteBuffer[] segments, long length, String id) {
+            this.segments = segments;
             this.length = length;
             this.id = id;
-            this.modified = TIME.incrementAndGet();
         }
 
     }
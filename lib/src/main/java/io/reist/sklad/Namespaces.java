@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Space used by objects of {@link LimitedStorage} split by namespace. Objects written through
+ * the storage are counted when they are written, the ones which were there before are counted
+ * once eviction comes across them, see {@link #onFound(String, long)}.
+ */
+final class Namespaces {
+
+    @NonNull
+    private LimitedStorage.Classifier classifier;
+
+    private final Map<String, Namespace> namespaces = new HashMap<>();
+
+    Namespaces(@NonNull LimitedStorage.Classifier classifier) {
+        this.classifier = classifier;
+    }
+
+    synchronized void setClassifier(@NonNull LimitedStorage.Classifier classifier) {
+
+        this.classifier = classifier;
+
+        Map<String, Long> objects = new LinkedHashMap<>();
+        for (Namespace namespace : namespaces.values()) {
+            objects.putAll(namespace.objects);
+            namespace.objects.clear();
+            namespace.usedSpace = 0;
+        }
+
+        for (Map.Entry<String, Long> object : objects.entrySet()) {
+            onWrite(object.getKey(), object.getValue());
+        }
+
+    }
+
+    /**
+     * @param capacity  the space the guarantees must fit into, -1 if it's unlimited
+     * @throws IllegalArgumentException if the space is negative or the guarantees of all
+     *          namespaces would exceed the capacity
+     */
+    synchronized void setGuaranteedSpace(@NonNull String name, long space, long capacity) {
+
+        if (space < 0) {
+            throw new IllegalArgumentException("Guaranteed space is negative");
+        }
+
+        if (capacity != -1) {
+            long total = space;
+            for (Map.Entry<String, Namespace> namespace : namespaces.entrySet()) {
+                if (!namespace.getKey().equals(name)) {
+                    total += namespace.getValue().guaranteedSpace;
+                }
+            }
+            if (total > capacity) {
+                throw new IllegalArgumentException("Guaranteed space exceeds the capacity");
+            }
+        }
+
+        get(name).guaranteedSpace = space;
+
+    }
+
+    synchronized long getGuaranteedSpace(@NonNull String name) {
+        Namespace namespace = namespaces.get(name);
+        return namespace == null ? 0 : namespace.guaranteedSpace;
+    }
+
+    synchronized long getUsedSpace(@NonNull String name) {
+        Namespace namespace = namespaces.get(name);
+        return namespace == null ? 0 : namespace.usedSpace;
+    }
+
+    synchronized long getEvictionCount(@NonNull String name) {
+        Namespace namespace = namespaces.get(name);
+        return namespace == null ? 0 : namespace.evictionCount;
+    }
+
+    synchronized void onWrite(@NonNull String id, long length) {
+        Namespace namespace = get(classifier.classify(id));
+        Long oldLength = namespace.objects.remove(id);
+        if (oldLength != null) {
+            namespace.usedSpace -= oldLength;
+        }
+        namespace.objects.put(id, length);
+        namespace.usedSpace += length;
+    }
+
+    /**
+     * Counts an object which is already stored unless it's counted already.
+     */
+    synchronized void onFound(@NonNull String id, long length) {
+        Namespace namespace = get(classifier.classify(id));
+        if (!namespace.objects.containsKey(id)) {
+            namespace.objects.put(id, length);
+            namespace.usedSpace += length;
+        }
+    }
+
+    synchronized boolean contains(@NonNull String id) {
+        Namespace namespace = namespaces.get(classifier.classify(id));
+        return namespace != null && namespace.objects.containsKey(id);
+    }
+
+    /**
+     * @return true if the object belongs to a namespace which doesn't use more than its
+     *          guaranteed space, such objects must not be evicted
+     */
+    synchronized boolean isGuaranteed(@NonNull String id) {
+        Namespace namespace = namespaces.get(classifier.classify(id));
+        return namespace != null &&
+                namespace.guaranteedSpace > 0 &&
+                namespace.usedSpace <= namespace.guaranteedSpace;
+    }
+
+    synchronized void onRemove(@NonNull String id, boolean evicted) {
+        Namespace namespace = namespaces.get(classifier.classify(id));
+        if (namespace == null) {
+            return;
+        }
+        Long length = namespace.objects.remove(id);
+        if (length != null) {
+            namespace.usedSpace -= length;
+            if (evicted) {
+                namespace.evictionCount++;
+            }
+        }
+    }
+
+    synchronized void clear() {
+        for (Namespace namespace : namespaces.values()) {
+            namespace.objects.clear();
+            namespace.usedSpace = 0;
+        }
+    }
+
+    /**
+     * Looks for a victim in namespaces which use more than their guaranteed space, the one which
+     * exceeds it most goes first. Within a namespace the victim is chosen by the policy or, if
+     * there is none, the oldest object is.
+     *
+     * @param peek  true to use {@link EvictionPolicy#peekVictim(EvictionPolicy.Filter)}, so
+     *              that the state of the policy doesn't change
+     * @return null if all namespaces stay within their guaranteed space or their objects can't
+     *          be evicted
+     */
+    @Nullable
+    String selectVictim(
+            @Nullable EvictionPolicy evictionPolicy,
+            @NonNull final EvictionPolicy.Filter filter,
+            boolean peek
+    ) {
+
+        // the policy is called without the monitor held, since its filters call back here
+        List<Set<String>> borrowers = getBorrowers();
+
+        for (final Set<String> objects : borrowers) {
+            String victim = null;
+            if (evictionPolicy == null) {
+                for (String id : objects) {
+                    if (filter.isEvictable(id)) {
+                        victim = id;
+                        break;
+                    }
+                }
+            } else {
+                EvictionPolicy.Filter namespaceFilter = new EvictionPolicy.Filter() {
+
+                    @Override
+                    public boolean isEvictable(@NonNull String id) {
+                        return objects.contains(id) && filter.isEvictable(id);
+                    }
+
+                };
+                victim = peek ?
+                        evictionPolicy.peekVictim(namespaceFilter) :
+                        evictionPolicy.selectVictim(namespaceFilter);
+            }
+            if (victim != null) {
+                return victim;
+            }
+        }
+
+        return null;
+
+    }
+
+    /**
+     * @return  copies of the objects of namespaces which use more than their guaranteed space,
+     *          the one which exceeds it most comes first
+     */
+    @NonNull
+    private synchronized List<Set<String>> getBorrowers() {
+
+        List<Namespace> namespaces = new ArrayList<>();
+        for (Namespace namespace : this.namespaces.values()) {
+            if (namespace.usedSpace > namespace.guaranteedSpace) {
+                namespaces.add(namespace);
+            }
+        }
+
+        Collections.sort(namespaces, new Comparator<Namespace>() {
+
+            @Override
+            public int compare(Namespace n1, Namespace n2) {
+                long excess1 = n1.usedSpace - n1.guaranteedSpace;
+                long excess2 = n2.usedSpace - n2.guaranteedSpace;
+                return excess1 > excess2 ? -1 : (excess1 == excess2 ? 0 : 1);
+            }
+
+        });
+
+        List<Set<String>> borrowers = new ArrayList<>(namespaces.size());
+        for (Namespace namespace : namespaces) {
+            borrowers.add(new LinkedHashSet<>(namespace.objects.keySet()));
+        }
+        return borrowers;
+
+    }
+
+    @NonNull
+    private Namespace get(@NonNull String name) {
+        Namespace namespace = namespaces.get(name);
+        if (namespace == null) {
+            namespace = new Namespace();
+            namespaces.put(name, namespace);
+        }
+        return namespace;
+    }
+
+    private static class Namespace {
+
+        /**
+         * Object lengths in the order of writing
+         */
+        final Map<String, Long> objects = new LinkedHashMap<>();
+
+        long guaranteedSpace;
+        long usedSpace;
+        long evictionCount;
+
+    }
+
+}
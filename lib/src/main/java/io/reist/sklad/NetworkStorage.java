@@ -19,6 +19,7 @@ package io.reist.sklad;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
@@ -37,10 +38,12 @@ import okhttp3.Response;
 import okhttp3.ResponseBody;
 import okio.BufferedSource;
 
+import io.reist.sklad.utils.StreamUtils;
+
 /**
  * Created by Reist on 28.06.16.
  */
-public class NetworkStorage implements Storage {
+public class NetworkStorage implements RangedStorage {
 
     private final List<Request> activeRequests = new CopyOnWriteArrayList<>();
 
@@ -77,9 +80,23 @@ public class NetworkStorage implements Storage {
         this.client = clientConfigurator.configure(new OkHttpClient.Builder(), this).build();
     }
 
+    private static final int HTTP_PARTIAL_CONTENT = 206;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
     private Response request(@NonNull String name) throws IOException {
+        return request(name, null);
+    }
+
+    /**
+     * @param range the value of the Range header or null to request the whole object
+     */
+    private Response request(@NonNull String name, @Nullable String range) throws IOException {
         String url = urlResolver.toUrl(name);
-        Request request = new Request.Builder().url(url).build();
+        Request.Builder builder = new Request.Builder().url(url);
+        if (range != null) {
+            builder.header("Range", range);
+        }
+        Request request = builder.build();
         activeRequests.add(request);
         try {
             return client.newCall(request).execute();
@@ -106,66 +123,49 @@ public class NetworkStorage implements Storage {
     @Nullable
     @Override
     public InputStream openInputStream(@NonNull String id) throws IOException {
-        final ResponseBody body = request(id).body();
-        final long contentLength = body.contentLength();
-        final BufferedSource source = body.source();
-        return new InputStream() {
-
-            private int position = 0;
-
-            @Override
-            public int read(byte[] b) throws IOException {
-                int numRead = source.read(b);
-                position += numRead;
-                return numRead;
-            }
+        return new ResponseInputStream(request(id).body());
+    }
 
-            @Override
-            public int read(byte[] b, int off, int len) throws IOException {
-                int numRead = source.read(b, off, len);
-                position += numRead;
-                return numRead;
-            }
+    /**
+     * Requests the range with the Range header. If the server ignores the header, the bytes
+     * before the offset are skipped.
+     */
+    @Nullable
+    @Override
+    public InputStream openInputStream(@NonNull String id, long offset, long length) throws IOException {
 
-            @Override
-            public long skip(long n) throws IOException {
-                source.skip(n);
-                position += n;
-                return n;
-            }
+        offset = Math.max(offset, 0);
 
-            @Override
-            public int available() throws IOException {
-                return (int) contentLength - position;
-            }
+        if (offset == 0 && length < 0) {
+            return openInputStream(id);
+        }
 
-            @Override
-            public void close() throws IOException {
-                body.close();
-            }
+        String range = "bytes=" + offset + "-";
+        if (length > 0) {
+            range += offset + length - 1;
+        }
 
-            @Override
-            public synchronized void mark(int readlimit) {
-                throw new UnsupportedOperationException();
-            }
+        Response response = request(id, range);
+        ResponseBody body = response.body();
 
-            @Override
-            public synchronized void reset() throws IOException {
-                throw new UnsupportedOperationException();
-            }
+        if (response.code() == HTTP_RANGE_NOT_SATISFIABLE) {
+            body.close();
+            return new ByteArrayInputStream(new byte[0]);
+        }
 
-            @Override
-            public boolean markSupported() {
-                return false;
-            }
+        InputStream inputStream = new ResponseInputStream(body);
 
-            @Override
-            public int read() throws IOException {
-                position++;
-                return source.readByte() & 0xFF;
+        if (response.code() != HTTP_PARTIAL_CONTENT) {
+            try {
+                StreamUtils.skipFully(inputStream, offset);
+            } catch (IOException e) {
+                inputStream.close();
+                throw e;
             }
+        }
+
+        return StreamUtils.limit(inputStream, length);
 
-        };
     }
 
     @Override
@@ -178,6 +178,79 @@ public class NetworkStorage implements Storage {
         throw new UnsupportedOperationException();
     }
 
+    private static class ResponseInputStream extends InputStream implements LengthAware {
+
+        private final ResponseBody body;
+        private final long contentLength;
+        private final BufferedSource source;
+
+        private int position = 0;
+
+        ResponseInputStream(ResponseBody body) {
+            this.body = body;
+            this.contentLength = body.contentLength();
+            this.source = body.source();
+        }
+
+        @Override
+        public int read(@NonNull byte[] b) throws IOException {
+            int numRead = source.read(b);
+            position += numRead;
+            return numRead;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            int numRead = source.read(b, off, len);
+            position += numRead;
+            return numRead;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            source.skip(n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) contentLength - position;
+        }
+
+        @Override
+        public long getLength() {
+            return contentLength;
+        }
+
+        @Override
+        public void close() throws IOException {
+            body.close();
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public int read() throws IOException {
+            position++;
+            return source.readByte() & 0xFF;
+        }
+
+    }
+
     /**
      * Forces a thread which performs socket reading to throw {@link ConnectException}
      * if {@link java.net.SocketTimeoutException} is not thrown within timeout interval.
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.reist.sklad.utils.StreamUtils;
+
+/**
+ * A {@link MemoryStorage} counterpart which keeps objects in direct memory, so that large
+ * caches don't burden the garbage collector.
+ *
+ * Objects are stored in chunks taken from a {@link SlabAllocator}. An object is published when
+ * its output stream is closed. Channels read chunks into the given buffers directly. Chunks of
+ * a deleted or replaced object are reused as soon as the last reader is closed.
+ */
+public class OffHeapMemoryStorage implements JournalingStorage, RangedStorage, ChannelStorage, SizedStorage {
+
+    private final SlabAllocator allocator = new SlabAllocator();
+
+    private final ConcurrentMap<String, Slab> dataMap = new ConcurrentHashMap<>();
+
+    /**
+     * Guards the modification order list and changes of {@link #dataMap}, lookups don't lock.
+     */
+    private final Object listLock = new Object();
+
+    private Slab head;
+    private Slab tail;
+
+    private final AtomicLong usedSpace = new AtomicLong();
+
+    @Override
+    public boolean contains(@NonNull String id) {
+        return dataMap.containsKey(id);
+    }
+
+    @NonNull
+    @Override
+    public OutputStream openOutputStream(@NonNull String id) {
+        return openOutputStream(id, -1);
+    }
+
+    /**
+     * Chunks are chosen to fit the expected size. Otherwise chunk sizes double as the object
+     * grows.
+     */
+    @NonNull
+    @Override
+    public OutputStream openOutputStream(@NonNull final String id, long expectedLength) {
+        return new ChunkedOutputStream(
+                SlabAllocator.MIN_CHUNK_SIZE,
+                SlabAllocator.MAX_CHUNK_SIZE,
+                expectedLength
+        ) {
+
+            @NonNull
+            @Override
+            protected ByteBuffer allocateChunk(int size) {
+                return allocator.allocate(size);
+            }
+
+            @Override
+            protected void publish(@NonNull ByteBuffer[] chunks, long length) {
+                put(new Slab(id, chunks, length));
+            }
+
+        };
+    }
+
+    @Nullable
+    @Override
+    public InputStream openInputStream(@NonNull String id) {
+        return openInputStream(id, 0, -1);
+    }
+
+    @Nullable
+    @Override
+    public InputStream openInputStream(@NonNull String id, long offset, long length) {
+        ChunkedInputStream inputStream = open(id, offset);
+        return inputStream == null ?
+                null :
+                new InterruptibleInputStream(StreamUtils.limit(inputStream, length));
+    }
+
+    @Nullable
+    @Override
+    public ReadableByteChannel openReadChannel(@NonNull String id) {
+        return open(id, 0);
+    }
+
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    @Override
+    public int read(@NonNull String id, @NonNull ByteBuffer dst, long position) throws IOException {
+
+        ChunkedInputStream inputStream = open(id, position);
+
+        if (inputStream == null) {
+            throw new FileNotFoundException(id);
+        }
+
+        try {
+            return inputStream.readFully(dst);
+        } finally {
+            inputStream.close();
+        }
+
+    }
+
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    @Override
+    public long transferTo(@NonNull String id, @NonNull WritableByteChannel target) throws IOException {
+
+        Slab slab = acquire(id);
+
+        if (slab == null) {
+            return -1;
+        }
+
+        try {
+            for (ByteBuffer chunk : slab.chunks) {
+                ByteBuffer buffer = chunk.duplicate();
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+            }
+            return slab.length;
+        } finally {
+            release(slab);
+        }
+
+    }
+
+    @Override
+    public boolean delete(@NonNull String id) {
+        Slab slab;
+        synchronized (listLock) {
+            slab = dataMap.remove(id);
+            if (slab == null) {
+                return false;
+            }
+            unlink(slab);
+            usedSpace.addAndGet(-slab.length);
+        }
+        release(slab);
+        return true;
+    }
+
+    @Override
+    public void deleteAll() {
+        List<Slab> slabs = new ArrayList<>();
+        synchronized (listLock) {
+            for (Slab slab = head; slab != null; slab = slab.next) {
+                slabs.add(slab);
+            }
+            dataMap.clear();
+            head = null;
+            tail = null;
+            usedSpace.set(0);
+        }
+        for (Slab slab : slabs) {
+            release(slab);
+        }
+    }
+
+    @Override
+    public long getUsedSpace() {
+        return usedSpace.get();
+    }
+
+    /**
+     * @return the number of bytes of direct memory taken by the storage, it includes pooled
+     * chunks and the unused tails of chunks
+     */
+    public long getAllocatedSpace() {
+        return allocator.getAllocatedSize();
+    }
+
+    @Override
+    public long getLength(@NonNull String id) {
+        Slab slab = dataMap.get(id);
+        return slab == null ? -1 : slab.length;
+    }
+
+    @Override
+    public String getOldestId() {
+        synchronized (listLock) {
+            return head == null ? null : head.id;
+        }
+    }
+
+    @Nullable
+    @Override
+    public String getOldestId(@NonNull EvictionPolicy.Filter filter) {
+        synchronized (listLock) {
+            for (Slab node = head; node != null; node = node.next) {
+                if (filter.isEvictable(node.id)) {
+                    return node.id;
+                }
+            }
+            return null;
+        }
+    }
+
+    private void put(@NonNull Slab slab) {
+        Slab previous;
+        synchronized (listLock) {
+            previous = dataMap.put(slab.id, slab);
+            long delta = slab.length;
+            if (previous != null) {
+                unlink(previous);
+                delta -= previous.length;
+            }
+            slab.prev = tail;
+            if (tail == null) {
+                head = slab;
+            } else {
+                tail.next = slab;
+            }
+            tail = slab;
+            usedSpace.addAndGet(delta);
+        }
+        if (previous != null) {
+            release(previous);
+        }
+    }
+
+    private void unlink(@NonNull Slab slab) {
+        if (slab.prev == null) {
+            head = slab.next;
+        } else {
+            slab.prev.next = slab.next;
+        }
+        if (slab.next == null) {
+            tail = slab.prev;
+        } else {
+            slab.next.prev = slab.prev;
+        }
+        slab.prev = null;
+        slab.next = null;
+    }
+
+    /**
+     * @return a stream which releases the object on close or null if there is no such object
+     */
+    @Nullable
+    private ChunkedInputStream open(@NonNull String id, long offset) {
+
+        final Slab slab = acquire(id);
+
+        if (slab == null) {
+            return null;
+        }
+
+        return new ChunkedInputStream(slab.chunks, slab.length, offset) {
+
+            @Override
+            protected void onClose() {
+                release(slab);
+            }
+
+        };
+
+    }
+
+    /**
+     * @return the object with an extra reference which must be released or null if there is no
+     * such object
+     */
+    @Nullable
+    private Slab acquire(@NonNull String id) {
+        while (true) {
+            Slab slab = dataMap.get(id);
+            if (slab == null) {
+                return null;
+            }
+            if (slab.retain()) {
+                return slab;
+            }
+            // the object has just been replaced or deleted, look again
+            Thread.yield();
+        }
+    }
+
+    private void release(@NonNull Slab slab) {
+        if (slab.refCount.decrementAndGet() == 0) {
+            for (ByteBuffer chunk : slab.chunks) {
+                allocator.free(chunk);
+            }
+        }
+    }
+
+    /**
+     * A stored object. Its chunks are flipped, so that they contain the object bytes between
+     * the position and the limit.
+     */
+    private static final class Slab {
+
+        final String id;
+        final ByteBuffer[] chunks;
+        final long length;
+
+        /**
+         * The storage holds one reference while the object is stored, each reader holds another
+         * one.
+         */
+        final AtomicInteger refCount = new AtomicInteger(1);
+
+        /**
+         * Neighbours in the modification order, guarded by
+         * {@link OffHeapMemoryStorage#listLock}.
+         */
+        Slab prev;
+        Slab next;
+
+        Slab(String id, ByteBuffer[] chunks, long length) {
+            this.id = id;
+            this.chunks = chunks;
+            this.length = length;
+        }
+
+        boolean retain() {
+            while (true) {
+                int count = refCount.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (refCount.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+    }
+
+}
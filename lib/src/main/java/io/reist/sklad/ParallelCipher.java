@@ -0,0 +1,425 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+
+import io.reist.sklad.utils.StreamUtils;
+
+/**
+ * Encrypts and decrypts {@link AesCtrFormat} data in chunks on a pool of worker threads. The
+ * counter of a chunk depends only on its position, so the chunks are processed independently
+ * while the caller writes or reads them in order. At most chunksInFlight chunks are queued or
+ * processed per stream, that's what bounds the memory: reading decrypts as many chunks ahead
+ * of the consumer.
+ */
+final class ParallelCipher {
+
+    private static final long KEEP_ALIVE = 30; // seconds
+
+    private final ThreadPoolExecutor executor;
+    private final int threads;
+    private final int chunksInFlight;
+
+    ParallelCipher(int threads, int chunksInFlight) {
+
+        if (threads < 1 || chunksInFlight < 1) {
+            throw new IllegalArgumentException("Threads and chunks in flight must be positive");
+        }
+
+        this.threads = threads;
+        this.chunksInFlight = chunksInFlight;
+
+        this.executor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                KEEP_ALIVE,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(@NonNull Runnable r) {
+                        Thread thread = new Thread(r, "EncryptedStorage worker");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+
+                }
+        );
+
+        // idle workers exit, so a storage that is no longer used doesn't hold threads
+        this.executor.allowCoreThreadTimeOut(true);
+
+    }
+
+    int getThreads() {
+        return threads;
+    }
+
+    int getChunksInFlight() {
+        return chunksInFlight;
+    }
+
+    @NonNull
+    OutputStream openOutputStream(
+            @NonNull OutputStream outputStream,
+            @NonNull AesCtrFormat format,
+            @NonNull CipherPool cipherPool
+    ) {
+        return new EncryptingOutputStream(outputStream, format, cipherPool);
+    }
+
+    @NonNull
+    InputStream openInputStream(
+            @NonNull InputStream inputStream,
+            @NonNull AesCtrFormat format,
+            @NonNull CipherPool cipherPool,
+            long position
+    ) {
+        return new DecryptingInputStream(inputStream, format, cipherPool, position);
+    }
+
+    /**
+     * A part of the data which is transformed in place. Counter mode is symmetric, the same
+     * transformation encrypts and decrypts.
+     */
+    private static class Chunk implements Callable<Chunk> {
+
+        final byte[] data;
+        final int length;
+
+        private final AesCtrFormat format;
+        private final CipherPool cipherPool;
+        private final long position;
+
+        Chunk(byte[] data, int length, AesCtrFormat format, CipherPool cipherPool, long position) {
+            this.data = data;
+            this.length = length;
+            this.format = format;
+            this.cipherPool = cipherPool;
+            this.position = position;
+        }
+
+        @Override
+        public Chunk call() throws GeneralSecurityException {
+            Cipher cipher = format.getCipher(cipherPool, position);
+            try {
+                cipher.doFinal(data, 0, length, data, 0);
+            } finally {
+                cipherPool.release(cipher);
+            }
+            return this;
+        }
+
+    }
+
+    private static Chunk await(Future<Chunk> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static void cancel(ArrayDeque<Future<Chunk>> pending) {
+        Future<Chunk> future;
+        while ((future = pending.poll()) != null) {
+            future.cancel(false);
+        }
+    }
+
+    private class EncryptingOutputStream extends OutputStream {
+
+        private final OutputStream outputStream;
+        private final AesCtrFormat format;
+        private final CipherPool cipherPool;
+
+        private final ArrayDeque<Future<Chunk>> pending = new ArrayDeque<>();
+        private final ArrayDeque<byte[]> buffers = new ArrayDeque<>();
+
+        private byte[] buffer;
+        private int bufferLength;
+        private long position;
+
+        private boolean closed;
+
+        EncryptingOutputStream(OutputStream outputStream, AesCtrFormat format, CipherPool cipherPool) {
+            this.outputStream = outputStream;
+            this.format = format;
+            this.cipherPool = cipherPool;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+
+            while (len > 0) {
+
+                if (buffer == null) {
+                    buffer = buffers.isEmpty() ? new byte[format.chunkSize] : buffers.poll();
+                    bufferLength = 0;
+                }
+
+                int count = Math.min(len, buffer.length - bufferLength);
+                System.arraycopy(b, off, buffer, bufferLength, count);
+                bufferLength += count;
+                off += count;
+                len -= count;
+
+                if (bufferLength == buffer.length) {
+                    submit();
+                }
+
+            }
+
+        }
+
+        private void submit() throws IOException {
+
+            // the oldest chunk is written out first to keep the number of chunks bounded
+            if (pending.size() >= chunksInFlight) {
+                writeOldest();
+            }
+
+            pending.add(executor.submit(new Chunk(buffer, bufferLength, format, cipherPool, position)));
+            position += bufferLength;
+            buffer = null;
+
+        }
+
+        private void writeOldest() throws IOException {
+            Chunk chunk = await(pending.poll());
+            outputStream.write(chunk.data, 0, chunk.length);
+            buffers.add(chunk.data);
+        }
+
+        /**
+         * Encrypts the buffered data and writes all chunks to the wrapped stream.
+         */
+        @Override
+        public void flush() throws IOException {
+
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+
+            if (buffer != null && bufferLength > 0) {
+                submit();
+            }
+
+            while (!pending.isEmpty()) {
+                writeOldest();
+            }
+
+            outputStream.flush();
+
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            if (closed) {
+                return;
+            }
+
+            try {
+                flush();
+            } finally {
+                closed = true;
+                cancel(pending);
+                outputStream.close();
+            }
+
+        }
+
+    }
+
+    private class DecryptingInputStream extends InputStream {
+
+        private final InputStream inputStream;
+        private final AesCtrFormat format;
+        private final CipherPool cipherPool;
+
+        private final ArrayDeque<Future<Chunk>> pending = new ArrayDeque<>();
+        private final ArrayDeque<byte[]> buffers = new ArrayDeque<>();
+
+        private Chunk current;
+        private int currentOffset;
+
+        /**
+         * The position of the next chunk read from the wrapped stream.
+         */
+        private long position;
+
+        /**
+         * The number of bytes read from the wrapped stream and not returned to the consumer.
+         */
+        private long buffered;
+
+        private boolean ended;
+
+        DecryptingInputStream(InputStream inputStream, AesCtrFormat format, CipherPool cipherPool, long position) {
+            this.inputStream = inputStream;
+            this.format = format;
+            this.cipherPool = cipherPool;
+            this.position = position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+
+            if (len == 0) {
+                return 0;
+            }
+
+            if (current == null || currentOffset == current.length) {
+                if (!nextChunk()) {
+                    return -1;
+                }
+            }
+
+            int count = Math.min(len, current.length - currentOffset);
+            System.arraycopy(current.data, currentOffset, b, off, count);
+            currentOffset += count;
+            buffered -= count;
+
+            return count;
+
+        }
+
+        private boolean nextChunk() throws IOException {
+
+            if (current != null) {
+                buffers.add(current.data);
+                current = null;
+            }
+
+            readAhead();
+
+            if (pending.isEmpty()) {
+                return false;
+            }
+
+            current = await(pending.poll());
+            currentOffset = 0;
+
+            readAhead();
+
+            return true;
+
+        }
+
+        /**
+         * Reads the wrapped stream until chunksInFlight chunks are being decrypted.
+         */
+        private void readAhead() throws IOException {
+            while (!ended && pending.size() < chunksInFlight) {
+
+                byte[] data = buffers.isEmpty() ? new byte[format.chunkSize] : buffers.poll();
+                int length = StreamUtils.read(inputStream, data, 0, data.length);
+
+                if (length < data.length) {
+                    ended = true;
+                }
+
+                if (length <= 0) {
+                    buffers.add(data);
+                    break;
+                }
+
+                pending.add(executor.submit(new Chunk(data, length, format, cipherPool, position)));
+                position += length;
+                buffered += length;
+
+            }
+        }
+
+        /**
+         * Skipping past the decrypted chunks drops them and skips the wrapped stream.
+         */
+        @Override
+        public long skip(long n) throws IOException {
+
+            if (n <= 0) {
+                return 0;
+            }
+
+            if (n <= buffered) {
+                return super.skip(n);
+            }
+
+            long skipped = buffered;
+
+            cancel(pending);
+            current = null;
+            buffered = 0;
+
+            long skippedWrapped = ended ? 0 : inputStream.skip(n - skipped);
+            position += skippedWrapped;
+
+            return skipped + skippedWrapped;
+
+        }
+
+        @Override
+        public int available() throws IOException {
+            return current == null ? 0 : current.length - currentOffset;
+        }
+
+        @Override
+        public void close() throws IOException {
+            cancel(pending);
+            inputStream.close();
+        }
+
+    }
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Reserves disk space for files. It refers to classes which appeared in Lollipop, so it must
+ * be loaded only after the SDK version has been checked, otherwise older VMs may reject the
+ * class which refers to it.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+final class Preallocator {
+
+    private static final String TAG = Preallocator.class.getSimpleName();
+
+    private Preallocator() {}
+
+    static void preallocate(@NonNull FileOutputStream outputStream, long length) {
+        try {
+            Os.posix_fallocate(outputStream.getFD(), 0, length);
+        } catch (ErrnoException | IOException e) {
+            Log.d(TAG, "Cannot preallocate " + length + " bytes", e);
+        }
+    }
+
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A {@link Storage} which can open a part of an object without reading the bytes before it.
+ *
+ * @see Storages#openInputStream(Storage, String, long, long)
+ */
+public interface RangedStorage extends Storage {
+
+    /**
+     * @param offset    the position of the first byte to read
+     * @param length    the maximum number of bytes to read, a negative value means the rest of
+     *                  the object
+     */
+    @Nullable
+    InputStream openInputStream(@NonNull String id, long offset, long length) throws IOException;
+
+}
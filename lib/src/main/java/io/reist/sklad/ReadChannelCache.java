@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps files open for positional reads, so that a read doesn't cost an open and a close.
+ * The number of open files is bounded, the least recently used ones which aren't being read
+ * are closed first.
+ *
+ * A channel outlives its eviction or invalidation while somebody reads it. Since files are
+ * replaced by renaming, such a reader keeps seeing the version of the object it has opened.
+ */
+class ReadChannelCache {
+
+    private final int maxCount;
+
+    /**
+     * Iteration order is the access order, the least recently used channel comes first.
+     */
+    private final Map<String, Handle> handles = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Incremented on every invalidation, so that a file which has been opened while it was
+     * being replaced doesn't get into the cache.
+     */
+    private long generation;
+
+    ReadChannelCache(int maxCount) {
+        this.maxCount = maxCount;
+    }
+
+    /**
+     * Returns a cached channel or opens the file. The handle must be given back with
+     * {@link #release(Handle)}.
+     *
+     * @throws java.io.FileNotFoundException if there is no such file
+     */
+    @NonNull
+    Handle acquire(@NonNull String id, @NonNull File file) throws IOException {
+
+        long generation;
+
+        synchronized (this) {
+            Handle handle = handles.get(id);
+            if (handle != null) {
+                handle.refCount++;
+                return handle;
+            }
+            generation = this.generation;
+        }
+
+        Handle handle = new Handle(new RandomAccessFile(file, "r"));
+
+        synchronized (this) {
+
+            handle.refCount = 1;
+
+            if (generation == this.generation && !handles.containsKey(id) && evict()) {
+                handle.cached = true;
+                handles.put(id, handle);
+            }
+
+            return handle;
+
+        }
+
+    }
+
+    void release(@NonNull Handle handle) {
+        synchronized (this) {
+            handle.refCount--;
+            if (handle.refCount > 0 || handle.cached) {
+                return;
+            }
+        }
+        handle.close();
+    }
+
+    void invalidate(@NonNull String id) {
+        Handle handle;
+        synchronized (this) {
+            generation++;
+            handle = handles.remove(id);
+            if (handle == null) {
+                return;
+            }
+            handle.cached = false;
+            if (handle.refCount > 0) {
+                return;
+            }
+        }
+        handle.close();
+    }
+
+    void invalidateAll() {
+        Handle[] idle;
+        synchronized (this) {
+            generation++;
+            idle = new Handle[handles.size()];
+            int count = 0;
+            for (Handle handle : handles.values()) {
+                handle.cached = false;
+                if (handle.refCount == 0) {
+                    idle[count++] = handle;
+                }
+            }
+            handles.clear();
+        }
+        for (Handle handle : idle) {
+            if (handle != null) {
+                handle.close();
+            }
+        }
+    }
+
+    synchronized int getCount() {
+        return handles.size();
+    }
+
+    /**
+     * Closes idle channels until there is room for one more. Must be called with the monitor
+     * held.
+     *
+     * @return false if there isn't enough room even after eviction
+     */
+    private boolean evict() {
+        Iterator<Handle> iterator = handles.values().iterator();
+        while (handles.size() >= maxCount && iterator.hasNext()) {
+            Handle handle = iterator.next();
+            if (handle.refCount == 0) {
+                iterator.remove();
+                handle.cached = false;
+                handle.close();
+            }
+        }
+        return handles.size() < maxCount;
+    }
+
+    static final class Handle {
+
+        /**
+         * Kept to prevent the file from being closed when it's collected
+         */
+        private final RandomAccessFile file;
+
+        final FileChannel channel;
+
+        int refCount;
+        boolean cached;
+
+        Handle(RandomAccessFile file) {
+            this.file = file;
+            this.channel = file.getChannel();
+        }
+
+        private void close() {
+            try {
+                file.close();
+            } catch (IOException ignored) {}
+        }
+
+    }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import android.support.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counts open streams per object.
+ */
+final class ReferenceCounter {
+
+    private final Map<String, Integer> counts = new HashMap<>();
+
+    synchronized void acquire(@NonNull String id) {
+        Integer count = counts.get(id);
+        counts.put(id, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * @return the number of references left
+     */
+    synchronized int release(@NonNull String id) {
+        Integer count = counts.get(id);
+        if (count == null) {
+            throw new IllegalStateException("No references to " + id);
+        } else if (count == 1) {
+            counts.remove(id);
+            return 0;
+        } else {
+            counts.put(id, count - 1);
+            return count - 1;
+        }
+    }
+
+    synchronized int get(@NonNull String id) {
+        Integer count = counts.get(id);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * @return the number of objects with references
+     */
+    synchronized int size() {
+        return counts.size();
+    }
+
+}
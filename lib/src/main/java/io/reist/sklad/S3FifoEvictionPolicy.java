@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * S3-FIFO. New objects go to a small queue which takes about 10% of the space. Objects which
+ * are read again while in the small queue move to the main queue, the rest are evicted and
+ * remembered in a ghost queue. Objects written again while in the ghost queue go straight to
+ * the main queue. The main queue gives each object a second chance for every read, up to
+ * {@link #MAX_FREQUENCY}. One-hit objects leave quickly and no reordering happens on reads.
+ */
+public class S3FifoEvictionPolicy implements EvictionPolicy {
+
+    private static final int MAX_FREQUENCY = 3;
+
+    private static final int SMALL_QUEUE_RATIO = 10;
+
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    private final LinkedHashMap<String, Entry> small = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Entry> main = new LinkedHashMap<>();
+    private final Set<String> ghost = new LinkedHashSet<>();
+
+    private long smallLength;
+    private long totalLength;
+
+    @Override
+    public synchronized void onWrite(@NonNull String id, long length) {
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            entry = new Entry(id);
+            entries.put(id, entry);
+            entry.inMain = ghost.remove(id);
+            (entry.inMain ? main : small).put(id, entry);
+        } else {
+            resize(entry, -entry.length);
+        }
+        entry.length = Math.max(length, 0);
+        resize(entry, entry.length);
+    }
+
+    private void resize(Entry entry, long delta) {
+        totalLength += delta;
+        if (!entry.inMain) {
+            smallLength += delta;
+        }
+    }
+
+    @Override
+    public synchronized void onAccess(@NonNull String id) {
+        Entry entry = entries.get(id);
+        if (entry != null && entry.frequency < MAX_FREQUENCY) {
+            entry.frequency++;
+        }
+    }
+
+    @Override
+    public synchronized void onRemove(@NonNull String id) {
+        remove(id);
+    }
+
+    @Override
+    public synchronized void onEvict(@NonNull String id) {
+        Entry entry = remove(id);
+        if (entry != null && !entry.inMain) {
+            ghost.add(id);
+            Iterator<String> iterator = ghost.iterator();
+            while (ghost.size() > Math.max(main.size(), 1)) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+    }
+
+    private Entry remove(String id) {
+        Entry entry = entries.remove(id);
+        if (entry != null) {
+            resize(entry, -entry.length);
+            (entry.inMain ? main : small).remove(id);
+        }
+        return entry;
+    }
+
+    @Override
+    public synchronized void onClear() {
+        entries.clear();
+        small.clear();
+        main.clear();
+        ghost.clear();
+        smallLength = 0;
+        totalLength = 0;
+    }
+
+    @Nullable
+    @Override
+    public synchronized String selectVictim(@NonNull Filter filter) {
+
+        while (main.isEmpty() || smallLength * SMALL_QUEUE_RATIO >= totalLength) {
+            Entry entry = first(small, filter);
+            if (entry == null) {
+                break;
+            } else if (entry.frequency == 0) {
+                return entry.id;
+            }
+            small.remove(entry.id);
+            smallLength -= entry.length;
+            entry.inMain = true;
+            entry.frequency = 0;
+            main.put(entry.id, entry);
+        }
+
+        // every read gives an object a second chance, so the loop ends after MAX_FREQUENCY passes
+        Entry entry;
+        while ((entry = first(main, filter)) != null) {
+            if (entry.frequency == 0) {
+                return entry.id;
+            }
+            main.remove(entry.id);
+            entry.frequency--;
+            main.put(entry.id, entry);
+        }
+
+        // only objects of the small queue can be evicted
+        entry = first(small, filter);
+        return entry == null ? null : entry.id;
+
+    }
+
+    /**
+     * Replays {@link #selectVictim(Filter)} without moving objects. Objects of the main queue
+     * leave in the order of their frequencies, the ones promoted from the small queue have none
+     * and come after the ones which are already there.
+     */
+    @Nullable
+    @Override
+    public synchronized String peekVictim(@NonNull Filter filter) {
+
+        long smallLength = this.smallLength;
+        Entry firstPromoted = null;
+
+        Iterator<Entry> iterator = small.values().iterator();
+        while ((main.isEmpty() && firstPromoted == null) || smallLength * SMALL_QUEUE_RATIO >= totalLength) {
+            Entry entry = next(iterator, filter);
+            if (entry == null) {
+                break;
+            } else if (entry.frequency == 0) {
+                return entry.id;
+            }
+            smallLength -= entry.length;
+            if (firstPromoted == null) {
+                firstPromoted = entry;
+            }
+        }
+
+        Entry victim = null;
+        for (Entry entry : main.values()) {
+            if (filter.isEvictable(entry.id) && (victim == null || entry.frequency < victim.frequency)) {
+                victim = entry;
+                if (victim.frequency == 0) {
+                    break;
+                }
+            }
+        }
+
+        if (firstPromoted != null && (victim == null || victim.frequency > 0)) {
+            return firstPromoted.id;
+        } else if (victim != null) {
+            return victim.id;
+        }
+
+        victim = first(small, filter);
+        return victim == null ? null : victim.id;
+
+    }
+
+    @Nullable
+    private static Entry first(Map<String, Entry> queue, Filter filter) {
+        return next(queue.values().iterator(), filter);
+    }
+
+    @Nullable
+    private static Entry next(Iterator<Entry> iterator, Filter filter) {
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (filter.isEvictable(entry.id)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private static class Entry {
+
+        final String id;
+
+        long length;
+        int frequency;
+        boolean inMain;
+
+        Entry(String id) {
+            this.id = id;
+        }
+
+    }
+
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.util.regex.Pattern;
+
+import io.reist.sklad.utils.FileUtils;
+
+/**
+ * A {@link FileStorage} which fans objects out into two levels of 256 subdirectories chosen by
+ * a hash of the id, so that no directory holds too many entries.
+ *
+ * Ids are escaped to be valid file names: every character except ASCII letters, digits,
+ * <code>-</code> and <code>_</code> is percent-encoded, so ids may contain <code>/</code>.
+ * Escaped ids which are longer than {@link #MAX_SEGMENT_LENGTH} are split into nested
+ * directories, which keeps every path segment below the file name length limit while the id
+ * can still be restored from the path.
+ */
+public class ShardedFileStorage extends FileStorage {
+
+    static final int MAX_SEGMENT_LENGTH = 128;
+
+    private static final char CONTINUATION_MARK = '+';
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    public ShardedFileStorage(@NonNull File parent) {
+        super(parent);
+    }
+
+    public ShardedFileStorage(@NonNull File parent, @NonNull FileUtils.Filter filter) {
+        super(parent, filter);
+    }
+
+    public ShardedFileStorage(
+            @NonNull File parent,
+            @NonNull FileUtils.Filter filter,
+            @Nullable File journalFile
+    ) {
+        super(parent, filter, journalFile);
+    }
+
+    @Override
+    public File getFileById(@NonNull String id) {
+
+        int hash = hash(id);
+
+        StringBuilder path = new StringBuilder();
+        appendHex(path, hash & 0xff);
+        path.append(File.separatorChar);
+        appendHex(path, (hash >>> 8) & 0xff);
+
+        String name = escape(id);
+        int start = 0;
+        do {
+            int end = Math.min(start + MAX_SEGMENT_LENGTH, name.length());
+            path.append(File.separatorChar).append(name, start, end);
+            if (end < name.length()) {
+                path.append(CONTINUATION_MARK);
+            }
+            start = end;
+        } while (start < name.length());
+
+        return new File(getParent(), path.toString());
+
+    }
+
+    /**
+     * @return the id of the object stored in the given file or null if the file doesn't belong
+     * to the layout
+     */
+    @Nullable
+    @Override
+    public String getIdByFile(File file) {
+
+        String parentPath = getParent().getAbsolutePath() + File.separator;
+        String path = file.getAbsolutePath();
+
+        if (!path.startsWith(parentPath)) {
+            return null;
+        }
+
+        String[] segments = path.substring(parentPath.length()).split(Pattern.quote(File.separator));
+
+        if (segments.length < 3 || !isShard(segments[0]) || !isShard(segments[1])) {
+            return null;
+        }
+
+        StringBuilder name = new StringBuilder();
+        for (int i = 2; i < segments.length; i++) {
+            String segment = segments[i];
+            boolean last = i == segments.length - 1;
+            if (last == (segment.charAt(segment.length() - 1) == CONTINUATION_MARK)) {
+                return null;
+            }
+            name.append(segment, 0, last ? segment.length() : segment.length() - 1);
+        }
+
+        String id = unescape(name.toString());
+
+        if (id == null || !getFileById(id).getAbsolutePath().equals(path)) {
+            return null;
+        }
+
+        return id;
+
+    }
+
+    private static int hash(String id) {
+        int h = id.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static boolean isShard(String segment) {
+        return segment.length() == 2 && hexValue(segment.charAt(0)) >= 0 && hexValue(segment.charAt(1)) >= 0;
+    }
+
+    private static boolean isSafe(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '_';
+    }
+
+    private static void appendHex(StringBuilder builder, int b) {
+        builder.append(HEX_DIGITS[(b >>> 4) & 0xf]).append(HEX_DIGITS[b & 0xf]);
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        } else {
+            return -1;
+        }
+    }
+
+    @NonNull
+    static String escape(@NonNull String id) {
+
+        StringBuilder builder = new StringBuilder(id.length());
+
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (isSafe(c)) {
+                builder.append(c);
+            } else {
+                int end = Character.isHighSurrogate(c) && i + 1 < id.length() ? i + 2 : i + 1;
+                for (byte b : toUtf8(id.substring(i, end))) {
+                    builder.append('%');
+                    appendHex(builder, b & 0xff);
+                }
+                i = end - 1;
+            }
+        }
+
+        return builder.toString();
+
+    }
+
+    @Nullable
+    static String unescape(@NonNull String name) {
+
+        StringBuilder builder = new StringBuilder(name.length());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        int i = 0;
+        while (i < name.length()) {
+            char c = name.charAt(i);
+            if (c == '%') {
+                if (i + 2 >= name.length()) {
+                    return null;
+                }
+                int high = hexValue(name.charAt(i + 1));
+                int low = hexValue(name.charAt(i + 2));
+                if (high < 0 || low < 0) {
+                    return null;
+                }
+                bytes.write((high << 4) | low);
+                i += 3;
+            } else if (isSafe(c)) {
+                if (bytes.size() > 0) {
+                    builder.append(fromUtf8(bytes.toByteArray()));
+                    bytes.reset();
+                }
+                builder.append(c);
+                i++;
+            } else {
+                return null;
+            }
+        }
+
+        if (bytes.size() > 0) {
+            builder.append(fromUtf8(bytes.toByteArray()));
+        }
+
+        return builder.toString();
+
+    }
+
+    private static byte[] toUtf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String fromUtf8(byte[] bytes) {
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
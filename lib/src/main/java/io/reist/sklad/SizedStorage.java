@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A {@link Storage} which can prepare for an object when its size is known in advance.
+ *
+ * @see Storages#openOutputStream(Storage, String, long)
+ */
+public interface SizedStorage extends Storage {
+
+    /**
+     * @param expectedLength    the number of bytes which are going to be written, a negative
+     *                          value means that the size is unknown. It's a hint, writing more or
+     *                          fewer bytes is not an error.
+     */
+    @NonNull
+    OutputStream openOutputStream(@NonNull String id, long expectedLength) throws IOException;
+
+}
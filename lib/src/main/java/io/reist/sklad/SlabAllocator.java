@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Hands out chunks of direct memory. Chunks come in size classes which are powers of two from
+ * {@link #MIN_CHUNK_SIZE} to {@link #MAX_CHUNK_SIZE}, each class is carved out of slabs of
+ * {@link #SLAB_SIZE} bytes. Freed chunks are pooled and reused, the memory of a slab is never
+ * given back.
+ */
+class SlabAllocator {
+
+    static final int MIN_CHUNK_SIZE = 256;
+    static final int MAX_CHUNK_SIZE = 64 * 1024;
+
+    static final int SLAB_SIZE = 1024 * 1024;
+
+    private static final int CLASS_COUNT =
+            Integer.numberOfTrailingZeros(MAX_CHUNK_SIZE / MIN_CHUNK_SIZE) + 1;
+
+    private final ArrayDeque<ByteBuffer>[] freeChunks;
+
+    private long allocatedSize;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    SlabAllocator() {
+        freeChunks = new ArrayDeque[CLASS_COUNT];
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            freeChunks[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * @return a cleared chunk of the smallest class which holds the given number of bytes or
+     * of the largest class if there is no such class
+     */
+    @NonNull
+    synchronized ByteBuffer allocate(int size) {
+
+        int sizeClass = sizeClass(size);
+        ArrayDeque<ByteBuffer> chunks = freeChunks[sizeClass];
+
+        if (chunks.isEmpty()) {
+            int chunkSize = MIN_CHUNK_SIZE << sizeClass;
+            ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+            for (int position = 0; position < SLAB_SIZE; position += chunkSize) {
+                slab.limit(position + chunkSize).position(position);
+                chunks.push(slab.slice());
+            }
+            allocatedSize += SLAB_SIZE;
+        }
+
+        return chunks.pop();
+
+    }
+
+    synchronized void free(@NonNull ByteBuffer chunk) {
+        chunk.clear();
+        freeChunks[sizeClass(chunk.capacity())].push(chunk);
+    }
+
+    /**
+     * @return the number of bytes taken by slabs
+     */
+    synchronized long getAllocatedSize() {
+        return allocatedSize;
+    }
+
+    static int sizeClass(int size) {
+        int sizeClass = 0;
+        while (sizeClass < CLASS_COUNT - 1 && MIN_CHUNK_SIZE << sizeClass < size) {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+
+}
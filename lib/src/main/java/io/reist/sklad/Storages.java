@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+import java.util.Map;
+
+import io.reist.sklad.utils.StreamUtils;
+
+/**
+ * Operations which use optional capabilities of a {@link Storage} when it has them and fall
+ * back to the basic stream API otherwise.
+ */
+public final class Storages {
+
+    private Storages() {}
+
+    /**
+     * Opens a part of an object. If the storage is not a {@link RangedStorage}, the bytes before
+     * the offset are read and discarded.
+     *
+     * @see RangedStorage#openInputStream(String, long, long)
+     */
+    @Nullable
+    public static InputStream openInputStream(
+            @NonNull Storage storage,
+            @NonNull String id,
+            long offset,
+            long length
+    ) throws IOException {
+
+        if (storage instanceof RangedStorage) {
+            return ((RangedStorage) storage).openInputStream(id, offset, length);
+        }
+
+        InputStream inputStream = storage.openInputStream(id);
+
+        if (inputStream == null) {
+            return null;
+        }
+
+        try {
+            StreamUtils.skipFully(inputStream, offset);
+        } catch (IOException e) {
+            inputStream.close();
+            throw e;
+        }
+
+        return StreamUtils.limit(inputStream, length);
+
+    }
+
+    /**
+     * Opens a channel for an object. If the storage is not a {@link ChannelStorage}, the channel
+     * wraps the input stream.
+     *
+     * @see ChannelStorage#openReadChannel(String)
+     */
+    @Nullable
+    public static ReadableByteChannel openReadChannel(
+            @NonNull Storage storage,
+            @NonNull String id
+    ) throws IOException {
+
+        if (storage instanceof ChannelStorage) {
+            return ((ChannelStorage) storage).openReadChannel(id);
+        }
+
+        InputStream inputStream = storage.openInputStream(id);
+        return inputStream == null ? null : Channels.newChannel(inputStream);
+
+    }
+
+    /**
+     * Reads a part of an object into the buffer. If the storage is not a {@link ChannelStorage},
+     * the part is read with {@link #openInputStream(Storage, String, long, long)}.
+     *
+     * @see ChannelStorage#read(String, ByteBuffer, long)
+     */
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    public static int read(
+            @NonNull Storage storage,
+            @NonNull String id,
+            @NonNull ByteBuffer dst,
+            long position
+    ) throws IOException {
+
+        if (storage instanceof ChannelStorage) {
+            return ((ChannelStorage) storage).read(id, dst, position);
+        }
+
+        InputStream inputStream = openInputStream(storage, id, position, dst.remaining());
+
+        if (inputStream == null) {
+            throw new FileNotFoundException(id);
+        }
+
+        try {
+            return StreamUtils.read(inputStream, dst);
+        } finally {
+            inputStream.close();
+        }
+
+    }
+
+    /**
+     * Writes a whole object to the channel. If the storage is not a {@link ChannelStorage}, the
+     * object is copied from the input stream.
+     *
+     * @see ChannelStorage#transferTo(String, WritableByteChannel)
+     */
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    public static long transferTo(
+            @NonNull Storage storage,
+            @NonNull String id,
+            @NonNull WritableByteChannel target
+    ) throws IOException {
+
+        if (storage instanceof ChannelStorage) {
+            return ((ChannelStorage) storage).transferTo(id, target);
+        }
+
+        InputStream inputStream = storage.openInputStream(id);
+
+        if (inputStream == null) {
+            return -1;
+        }
+
+        try {
+            return StreamUtils.transfer(Channels.newChannel(inputStream), target);
+        } finally {
+            inputStream.close();
+        }
+
+    }
+
+    /**
+     * Opens an object for writing. The expected length is ignored if the storage is not a
+     * {@link SizedStorage}.
+     *
+     * @see SizedStorage#openOutputStream(String, long)
+     */
+    @NonNull
+    public static OutputStream openOutputStream(
+            @NonNull Storage storage,
+            @NonNull String id,
+            long expectedLength
+    ) throws IOException {
+        if (storage instanceof SizedStorage) {
+            return ((SizedStorage) storage).openOutputStream(id, expectedLength);
+        } else {
+            return storage.openOutputStream(id);
+        }
+    }
+
+    /**
+     * Persists the expiration time of an object if the storage is an {@link ExpiringStorage},
+     * does nothing otherwise.
+     */
+    public static void setExpiration(@NonNull Storage storage, @NonNull String id, long expiresAt) {
+        if (storage instanceof ExpiringStorage) {
+            ((ExpiringStorage) storage).setExpiration(id, expiresAt);
+        }
+    }
+
+    /**
+     * @return the expiration times kept by the storage, none if it's not an
+     *          {@link ExpiringStorage}
+     */
+    @NonNull
+    public static Map<String, Long> getExpirations(@NonNull Storage storage) {
+        if (storage instanceof ExpiringStorage) {
+            return ((ExpiringStorage) storage).getExpirations();
+        } else {
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * @return the length of the object read by the stream or -1 if it's unknown
+     */
+    public static long getLength(@NonNull InputStream inputStream) {
+        return inputStream instanceof LengthAware ? ((LengthAware) inputStream).getLength() : -1;
+    }
+
+}
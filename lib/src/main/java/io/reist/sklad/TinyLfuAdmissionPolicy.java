@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * TinyLFU. Read frequencies are estimated by a {@link CountMinSketch} which ages over time. A
+ * candidate replaces a victim only if it has been read more often recently, so objects read
+ * once don't push popular objects out of the cache. Objects read at least
+ * {@code minFrequency} times are cached while there is free space.
+ */
+public class TinyLfuAdmissionPolicy implements AdmissionPolicy {
+
+    private final CountMinSketch sketch;
+
+    private final int minFrequency;
+
+    /**
+     * @param expectedKeys  the number of distinct objects which are expected to be read, usually
+     *                      a few times the number of objects fitting into the local storage
+     */
+    public TinyLfuAdmissionPolicy(int expectedKeys) {
+        this(expectedKeys, 1);
+    }
+
+    /**
+     * @param minFrequency  the number of reads after which an object is cached while the local
+     *                      storage has free space
+     */
+    public TinyLfuAdmissionPolicy(int expectedKeys, int minFrequency) {
+        this.sketch = new CountMinSketch(expectedKeys);
+        this.minFrequency = minFrequency;
+    }
+
+    @Override
+    public synchronized void onAccess(@NonNull String id) {
+        sketch.increment(id);
+    }
+
+    @Override
+    public synchronized boolean admit(@NonNull String candidate, @Nullable String victim) {
+        int frequency = sketch.frequency(candidate);
+        if (victim == null) {
+            return frequency >= minFrequency;
+        } else {
+            return frequency > sketch.frequency(victim);
+        }
+    }
+
+    public synchronized int getFrequency(@NonNull String id) {
+        return sketch.frequency(id);
+    }
+
+}
@@ -3,15 +3,36 @@ package io.reist.sklad;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+
+import io.reist.sklad.utils.StreamUtils;
 
 /**
  * Created by Reist on 26.10.16.
  */
 
-public class XorStorage implements JournalingStorage {
+public class XorStorage implements JournalingStorage, RangedStorage, ChannelStorage, SizedStorage,
+        ExpiringStorage {
+
+    /**
+     * The maximum size of the buffer an output stream XORs the written data into.
+     */
+    private static final int WRITE_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * The bounds of the buffer which keeps the bytes read after a mark when the wrapped stream
+     * doesn't support marks.
+     */
+    private static final int MIN_REWIND_BUFFER_SIZE = 1024;
+    static final int MAX_REWIND_BUFFER_SIZE = 256 * 1024;
 
     private final int encryptionBufferSize;
     private final int encryptionStepDenominator;
@@ -39,15 +60,31 @@ public class XorStorage implements JournalingStorage {
     @NonNull
     @Override
     public OutputStream openOutputStream(@NonNull String id) throws IOException {
+        return openOutputStream(id, -1);
+    }
+
+    @NonNull
+    @Override
+    public OutputStream openOutputStream(@NonNull String id, long expectedLength) throws IOException {
 
-        final OutputStream wrappedStream = journalingStorage.openOutputStream(id);
+        final OutputStream wrappedStream = Storages.openOutputStream(journalingStorage, id, expectedLength);
 
-        final byte[] encryptionKey = keyProvider.get();
+        final XorTransform transform = new XorTransform(
+                encryptionBufferSize,
+                encryptionStepDenominator,
+                keyProvider.get()
+        );
 
         return new OutputStream() {
 
             private long pos = 0;
 
+            /**
+             * Holds the XORed bytes, the caller's data is not modified. The bytes which are left
+             * as they are go to the wrapped stream directly.
+             */
+            private byte[] buffer;
+
             @Override
             public void write(byte[] b) throws IOException {
                 write(b, 0, b.length);
@@ -55,12 +92,22 @@ public class XorStorage implements JournalingStorage {
 
             @Override
             public void write(byte[] b, int off, int len) throws IOException {
-                byte[] out = new byte[len];
-                for (int i = 0; i < len; i++) {
-                    out[i] = xorIfNeeded(pos + i, b[off + i], encryptionKey);
+                while (len > 0) {
+                    int run = transform.getRunLength(pos, len);
+                    if (transform.isEncrypted(pos)) {
+                        if (buffer == null) {
+                            buffer = new byte[Math.min(WRITE_BUFFER_SIZE, Math.max(run, len))];
+                        }
+                        run = Math.min(run, buffer.length);
+                        transform.xor(b, off, buffer, 0, run, pos);
+                        wrappedStream.write(buffer, 0, run);
+                    } else {
+                        wrappedStream.write(b, off, run);
+                    }
+                    off += run;
+                    len -= run;
+                    pos += run;
                 }
-                wrappedStream.write(out, 0, len);
-                pos += len;
             }
 
             @Override
@@ -75,7 +122,7 @@ public class XorStorage implements JournalingStorage {
 
             @Override
             public void write(int b) throws IOException {
-                wrappedStream.write(xorIfNeeded(pos, (byte) b, encryptionKey));
+                wrappedStream.write(transform.apply((byte) b, pos));
                 pos++;
             }
 
@@ -86,91 +133,67 @@ public class XorStorage implements JournalingStorage {
     @Nullable
     @Override
     public InputStream openInputStream(@NonNull String id) throws IOException {
+        InputStream inputStream = journalingStorage.openInputStream(id);
+        return inputStream == null ? null : new XorInputStream(id, inputStream, 0, -1);
+    }
 
-        final InputStream wrappedStream = journalingStorage.openInputStream(id);
-
-        if (wrappedStream == null) {
+    /**
+     * The key stream depends on the position only, so the range is read from the wrapped
+     * storage directly.
+     */
+    @Nullable
+    @Override
+    public InputStream openInputStream(@NonNull String id, long offset, long length) throws IOException {
+        InputStream inputStream = Storages.openInputStream(journalingStorage, id, offset, length);
+        if (inputStream == null) {
             return null;
         }
+        offset = Math.max(offset, 0);
+        return new XorInputStream(id, inputStream, offset, length < 0 ? -1 : offset + length);
+    }
 
-        final byte[] encryptionKey = keyProvider.get();
-
-        return new InputStream() {
-
-            private long pos = 0;
-
-            @Override
-            public int read(byte[] b) throws IOException {
-                return read(b, 0, b.length);
-            }
-
-            @Override
-            public int read(byte[] b, int off, int len) throws IOException {
-                int read = wrappedStream.read(b, off, len);
-                for (int i = 0; i < read; i++) {
-                    b[off + i] = xorIfNeeded(pos + i, b[off + i], encryptionKey);
-                }
-                pos += read;
-                return read;
-            }
-
-            @Override
-            public long skip(long n) throws IOException {
-                long skipped = wrappedStream.skip(n);
-                pos += skipped;
-                return skipped;
-            }
-
-            @Override
-            public int available() throws IOException {
-                return wrappedStream.available();
-            }
-
-            @Override
-            public void close() throws IOException {
-                wrappedStream.close();
-            }
-
-            @Override
-            public synchronized void mark(int readlimit) {
-                throw new UnsupportedOperationException();
-            }
-
-            @Override
-            public synchronized void reset() throws IOException {
-                throw new UnsupportedOperationException();
-            }
+    @Nullable
+    @Override
+    public ReadableByteChannel openReadChannel(@NonNull String id) throws IOException {
+        InputStream inputStream = openInputStream(id);
+        return inputStream == null ? null : Channels.newChannel(inputStream);
+    }
 
-            @Override
-            public boolean markSupported() {
-                return false;
-            }
+    /**
+     * Reads the wrapped storage at the position and transforms the bytes in the buffer, nothing
+     * before the position is read.
+     */
+    @Override
+    public int read(@NonNull String id, @NonNull ByteBuffer dst, long position) throws IOException {
+        int start = dst.position();
+        int read = Storages.read(journalingStorage, id, dst, position);
+        if (read > 0) {
+            XorTransform transform = new XorTransform(
+                    encryptionBufferSize,
+                    encryptionStepDenominator,
+                    keyProvider.get()
+            );
+            transform.apply(dst, start, read, position);
+        }
+        return read;
+    }
 
-            @Override
-            public int read() throws IOException {
-                int b = wrappedStream.read();
-                long currentPos = pos;
-                try {
-                    return xorIfNeeded(currentPos, (byte) b, encryptionKey) & 0xFF;
-                } finally {
-                    pos++;
-                }
-            }
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    @Override
+    public long transferTo(@NonNull String id, @NonNull WritableByteChannel target) throws IOException {
 
-        };
+        InputStream inputStream = openInputStream(id);
 
-    }
+        if (inputStream == null) {
+            return -1;
+        }
 
-    private byte xorIfNeeded(long pos, byte b, byte[] encryptionKey) {
-        long leftBoundary = (pos / encryptionBufferSize) * encryptionBufferSize;
-        int lengthToEncrypt = encryptionBufferSize / encryptionStepDenominator;
-        long rightBoundary = leftBoundary + lengthToEncrypt - 1;
-        if (leftBoundary <= pos && pos <= rightBoundary) {
-            int keyPos = (int) ((pos - leftBoundary) % encryptionKey.length);
-            return (byte) (b ^ encryptionKey[keyPos]);
-        } else {
-            return b;
+        try {
+            return StreamUtils.transfer(Channels.newChannel(inputStream), target);
+        } finally {
+            inputStream.close();
         }
+
     }
 
     @Override
@@ -188,13 +211,279 @@ public class XorStorage implements JournalingStorage {
         return journalingStorage.getUsedSpace();
     }
 
+    @Override
+    public long getLength(@NonNull String id) {
+        return journalingStorage.getLength(id);
+    }
+
     @Override
     public String getOldestId() {
         return journalingStorage.getOldestId();
     }
 
+    @Nullable
+    @Override
+    public String getOldestId(@NonNull EvictionPolicy.Filter filter) {
+        return journalingStorage.getOldestId(filter);
+    }
+
+    @Override
+    public void setExpiration(@NonNull String id, long expiresAt) {
+        Storages.setExpiration(journalingStorage, id, expiresAt);
+    }
+
+    @NonNull
+    @Override
+    public Map<String, Long> getExpirations() {
+        return Storages.getExpirations(journalingStorage);
+    }
+
     public interface KeyProvider {
         byte[] get();
     }
 
+    /**
+     * Supports {@link #mark(int)} and {@link #reset()} in one of three ways. If the wrapped
+     * stream supports them, they are delegated to it and the position is restored. Otherwise the
+     * bytes read after the mark are kept in a rewind buffer of at most
+     * {@link #MAX_REWIND_BUFFER_SIZE} bytes and replayed. When more than that has been read and
+     * the wrapped storage is a {@link RangedStorage}, resetting opens the object at the mark.
+     */
+    private class XorInputStream extends InputStream {
+
+        private final String id;
+        private final XorTransform transform;
+
+        private final byte[] singleByte = new byte[1];
+
+        /**
+         * The end of the range or -1 if the stream reads till the end of the object.
+         */
+        private final long end;
+
+        private InputStream wrappedStream;
+
+        /**
+         * The position of the next byte returned.
+         */
+        private long pos;
+
+        private long markPos = -1;
+        private boolean markDelegated;
+
+        /**
+         * The bytes read after the mark, already transformed.
+         */
+        private byte[] rewindBuffer;
+        private int rewindLimit;
+        private int rewindLength;
+
+        /**
+         * The index of the next byte replayed from the rewind buffer.
+         */
+        private int rewindPos;
+
+        /**
+         * More bytes have been read after the mark than the rewind buffer can hold.
+         */
+        private boolean rewindOverflow;
+
+        XorInputStream(String id, InputStream wrappedStream, long offset, long end) {
+            this.id = id;
+            this.wrappedStream = wrappedStream;
+            this.pos = offset;
+            this.end = end;
+            this.transform = new XorTransform(
+                    encryptionBufferSize,
+                    encryptionStepDenominator,
+                    keyProvider.get()
+            );
+        }
+
+        @Override
+        public int read(@NonNull byte[] b) throws IOException {
+            return read(b, 0, b.length);
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+
+            if (len == 0) {
+                return 0;
+            }
+
+            if (rewindPos < rewindLength) {
+                int count = Math.min(len, rewindLength - rewindPos);
+                System.arraycopy(rewindBuffer, rewindPos, b, off, count);
+                rewindPos += count;
+                pos += count;
+                return count;
+            }
+
+            int read = wrappedStream.read(b, off, len);
+            if (read > 0) {
+                transform.apply(b, off, read, pos);
+                record(b, off, read);
+                pos += read;
+            }
+
+            return read;
+
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(singleByte, 0, 1) == -1 ? -1 : singleByte[0] & 0xFF;
+        }
+
+        private boolean isRecording() {
+            return markPos >= 0 && !markDelegated && !rewindOverflow;
+        }
+
+        private void record(byte[] b, int off, int len) {
+
+            if (!isRecording()) {
+                return;
+            }
+
+            if (rewindLength + len > rewindLimit) {
+                rewindOverflow = true;
+                rewindBuffer = null;
+                rewindLength = 0;
+                rewindPos = 0;
+                return;
+            }
+
+            if (rewindBuffer == null || rewindBuffer.length < rewindLength + len) {
+                int capacity = rewindBuffer == null ? MIN_REWIND_BUFFER_SIZE : rewindBuffer.length * 2;
+                capacity = Math.min(Math.max(capacity, rewindLength + len), rewindLimit);
+                byte[] buffer = new byte[capacity];
+                if (rewindBuffer != null) {
+                    System.arraycopy(rewindBuffer, 0, buffer, 0, rewindLength);
+                }
+                rewindBuffer = buffer;
+            }
+
+            System.arraycopy(b, off, rewindBuffer, rewindLength, len);
+            rewindLength += len;
+            rewindPos = rewindLength;
+
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+
+            if (n <= 0) {
+                return 0;
+            }
+
+            long skipped = 0;
+            if (rewindPos < rewindLength) {
+                skipped = Math.min(n, rewindLength - rewindPos);
+                rewindPos += skipped;
+                pos += skipped;
+                n -= skipped;
+            }
+
+            if (n == 0) {
+                return skipped;
+            }
+
+            // the skipped bytes are read to be replayed later
+            if (isRecording()) {
+                return skipped + super.skip(n);
+            }
+
+            long skippedWrapped = wrappedStream.skip(n);
+            pos += skippedWrapped;
+            return skipped + skippedWrapped;
+
+        }
+
+        @Override
+        public int available() throws IOException {
+            return rewindLength - rewindPos + wrappedStream.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            rewindBuffer = null;
+            wrappedStream.close();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+
+            markPos = pos;
+            rewindOverflow = false;
+
+            // the wrapped stream can't replay the bytes held in the rewind buffer
+            markDelegated = rewindPos == rewindLength && wrappedStream.markSupported();
+
+            if (markDelegated) {
+                wrappedStream.mark(readlimit);
+                rewindBuffer = null;
+                rewindLength = 0;
+                rewindPos = 0;
+                return;
+            }
+
+            // the bytes which haven't been replayed yet are kept
+            int remaining = rewindLength - rewindPos;
+            if (remaining > 0) {
+                System.arraycopy(rewindBuffer, rewindPos, rewindBuffer, 0, remaining);
+            }
+            rewindLength = remaining;
+            rewindPos = 0;
+            rewindLimit = Math.max(Math.min(Math.max(readlimit, 0), MAX_REWIND_BUFFER_SIZE), remaining);
+
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+
+            if (markPos < 0) {
+                throw new IOException("Mark not set");
+            }
+
+            if (markDelegated) {
+                wrappedStream.reset();
+                pos = markPos;
+                return;
+            }
+
+            if (!rewindOverflow) {
+                rewindPos = 0;
+                pos = markPos;
+                return;
+            }
+
+            if (!(journalingStorage instanceof RangedStorage)) {
+                throw new IOException("Resetting to invalid mark");
+            }
+
+            InputStream inputStream = ((RangedStorage) journalingStorage).openInputStream(
+                    id,
+                    markPos,
+                    end < 0 ? -1 : end - markPos
+            );
+
+            if (inputStream == null) {
+                throw new FileNotFoundException(id);
+            }
+
+            wrappedStream.close();
+            wrappedStream = inputStream;
+            pos = markPos;
+            rewindOverflow = false;
+
+        }
+
+    }
+
 }
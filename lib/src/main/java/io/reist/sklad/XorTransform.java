@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The transformation of {@link XorStorage}. The data is split into buffers of bufferSize
+ * bytes and the first bufferSize / stepDenominator bytes of each buffer are XORed with the key,
+ * which starts over at the beginning of each buffer.
+ *
+ * The key is repeated into a stripe whose length is a multiple of both the key length and
+ * eight, so the data is XORed eight bytes at a time. The boundaries are computed once per run of
+ * bytes, not per byte. Not thread-safe, every stream has its own instance.
+ */
+final class XorTransform {
+
+    private static final int WORD_SIZE = 8;
+
+    private final int bufferSize;
+    private final int encryptedLength;
+    private final int keyLength;
+
+    /**
+     * The length after which the stripe repeats.
+     */
+    private final int period;
+
+    private final byte[] stripe;
+    private final ByteBuffer stripeBuffer;
+
+    /**
+     * The arrays wrapped last, streams pass the same arrays over and over.
+     */
+    private final byte[][] wrappedArrays = new byte[2][];
+    private final ByteBuffer[] wrappedBuffers = new ByteBuffer[2];
+    private int nextWrapped;
+
+    XorTransform(int bufferSize, int stepDenominator, @NonNull byte[] key) {
+
+        if (key.length == 0) {
+            throw new IllegalArgumentException("The key is empty");
+        }
+
+        this.bufferSize = bufferSize;
+        this.encryptedLength = bufferSize / stepDenominator;
+        this.keyLength = key.length;
+        this.period = key.length * WORD_SIZE;
+
+        // one more word lets a word be read at any index before the period
+        this.stripe = new byte[period + WORD_SIZE];
+        for (int i = 0; i < stripe.length; i++) {
+            stripe[i] = key[i % keyLength];
+        }
+        this.stripeBuffer = ByteBuffer.wrap(stripe).order(ByteOrder.nativeOrder());
+
+    }
+
+    /**
+     * @return true if the byte at the position is XORed
+     */
+    boolean isEncrypted(long pos) {
+        return pos % bufferSize < encryptedLength;
+    }
+
+    /**
+     * @return the number of bytes starting at the position, at most len, which are all XORed or
+     * all left as they are
+     */
+    int getRunLength(long pos, int len) {
+        int offsetInBuffer = (int) (pos % bufferSize);
+        int end = offsetInBuffer < encryptedLength ? encryptedLength : bufferSize;
+        return Math.min(len, end - offsetInBuffer);
+    }
+
+    /**
+     * Transforms the data in place.
+     */
+    void apply(@NonNull byte[] b, int off, int len, long pos) {
+        while (len > 0) {
+            int run = getRunLength(pos, len);
+            if (isEncrypted(pos)) {
+                xor(b, off, b, off, run, pos);
+            }
+            off += run;
+            len -= run;
+            pos += run;
+        }
+    }
+
+    /**
+     * Transforms the bytes of the buffer starting at the index in place. The position and the
+     * byte order of the buffer are not changed.
+     */
+    void apply(@NonNull ByteBuffer buffer, int index, int len, long pos) {
+
+        if (buffer.hasArray()) {
+            apply(buffer.array(), buffer.arrayOffset() + index, len, pos);
+            return;
+        }
+
+        ByteBuffer target = buffer.duplicate().order(ByteOrder.nativeOrder());
+
+        while (len > 0) {
+            int run = getRunLength(pos, len);
+            if (isEncrypted(pos)) {
+                int stripeIndex = (int) (pos % bufferSize % keyLength);
+                int i = 0;
+                for (; i + WORD_SIZE <= run; i += WORD_SIZE) {
+                    target.putLong(index + i, target.getLong(index + i) ^ stripeBuffer.getLong(stripeIndex));
+                    stripeIndex += WORD_SIZE;
+                    if (stripeIndex >= period) {
+                        stripeIndex -= period;
+                    }
+                }
+                for (; i < run; i++) {
+                    target.put(index + i, (byte) (target.get(index + i) ^ stripe[stripeIndex++]));
+                }
+            }
+            index += run;
+            len -= run;
+            pos += run;
+        }
+
+    }
+
+    byte apply(byte b, long pos) {
+        int offsetInBuffer = (int) (pos % bufferSize);
+        if (offsetInBuffer < encryptedLength) {
+            return (byte) (b ^ stripe[offsetInBuffer % keyLength]);
+        } else {
+            return b;
+        }
+    }
+
+    /**
+     * XORs a run of bytes which are all encrypted, see {@link #getRunLength(long, int)}. The
+     * source and the target may be the same array.
+     */
+    void xor(@NonNull byte[] src, int srcOff, @NonNull byte[] dst, int dstOff, int len, long pos) {
+
+        int index = (int) (pos % bufferSize % keyLength);
+
+        ByteBuffer source = wrap(src);
+        ByteBuffer target = src == dst ? source : wrap(dst);
+
+        int i = 0;
+        for (; i + WORD_SIZE <= len; i += WORD_SIZE) {
+            target.putLong(dstOff + i, source.getLong(srcOff + i) ^ stripeBuffer.getLong(index));
+            index += WORD_SIZE;
+            if (index >= period) {
+                index -= period;
+            }
+        }
+
+        for (; i < len; i++) {
+            dst[dstOff + i] = (byte) (src[srcOff + i] ^ stripe[index++]);
+        }
+
+    }
+
+    @NonNull
+    private ByteBuffer wrap(@NonNull byte[] array) {
+
+        for (int i = 0; i < wrappedArrays.length; i++) {
+            if (wrappedArrays[i] == array) {
+                return wrappedBuffers[i];
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(array).order(ByteOrder.nativeOrder());
+        wrappedArrays[nextWrapped] = array;
+        wrappedBuffers[nextWrapped] = buffer;
+        nextWrapped = (nextWrapped + 1) % wrappedArrays.length;
+
+        return buffer;
+
+    }
+
+}
@@ -16,12 +16,13 @@ import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
 
 import io.reist.sklad.utils.FileUtils;
+import io.reist.sklad.utils.StreamUtils;
 import io.reist.sklad.utils.ZipUtils;
 
 /**
  * Created by 4xes on 05/12/2016.
  */
-public class ZipStorage implements Storage {
+public class ZipStorage implements RangedStorage {
 
 
     private File file;
@@ -63,6 +64,26 @@ public class ZipStorage implements Storage {
         }
     }
 
+    /**
+     * Skipping is cheap for stored entries only, compressed entries are inflated up to the
+     * offset.
+     */
+    @Nullable
+    @Override
+    public InputStream openInputStream(@NonNull String id, long offset, long length) throws IOException {
+        InputStream inputStream = openInputStream(id);
+        if (inputStream == null) {
+            return null;
+        }
+        try {
+            StreamUtils.skipFully(inputStream, offset);
+        } catch (IOException e) {
+            inputStream.close();
+            throw e;
+        }
+        return StreamUtils.limit(inputStream, length);
+    }
+
     @NonNull
     @Override
     public OutputStream openOutputStream(@NonNull String id) throws IOException {
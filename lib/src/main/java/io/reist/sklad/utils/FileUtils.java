@@ -87,7 +87,7 @@ public class FileUtils {
             if (f.isFile()) {
                 b &= f.delete();
             } else if (f.isDirectory()) {
-                b &= deleteFile(f);
+                b &= deleteFile(f, filter);
             }
         }
 
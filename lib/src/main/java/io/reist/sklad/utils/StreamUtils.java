@@ -0,0 +1,246 @@
+package io.reist.sklad.utils;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+public class StreamUtils {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * The number of reads or writes in a row which may transfer nothing
+     */
+    private static final int MAX_IDLE_COUNT = 1000;
+
+    private StreamUtils() {}
+
+    /**
+     * Skips exactly n bytes or up to the end of the stream. Unlike {@link InputStream#skip(long)}
+     * doesn't stop when the stream cannot skip, the bytes are read then.
+     *
+     * @return the number of bytes skipped
+     */
+    public static long skipFully(@NonNull InputStream inputStream, long n) throws IOException {
+
+        long skipped = 0;
+        byte[] buffer = null;
+
+        while (skipped < n) {
+
+            long s = inputStream.skip(n - skipped);
+
+            if (s > 0) {
+                skipped += s;
+                continue;
+            }
+
+            if (buffer == null) {
+                buffer = new byte[(int) Math.min(n - skipped, BUFFER_SIZE)];
+            }
+
+            int read = inputStream.read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+
+            if (read == -1) {
+                break;
+            }
+
+            skipped += read;
+
+        }
+
+        return skipped;
+
+    }
+
+    /**
+     * Reads from the stream until the buffer is full or the stream ends. The stream is read
+     * directly rather than through {@link java.nio.channels.Channels#newChannel(InputStream)},
+     * which would close it on interruption.
+     *
+     * @return the number of bytes read or -1 if the stream has ended before any byte is read
+     */
+    public static int read(@NonNull InputStream inputStream, @NonNull ByteBuffer dst) throws IOException {
+
+        if (dst.hasArray()) {
+            int read = read(inputStream, dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            if (read > 0) {
+                dst.position(dst.position() + read);
+            }
+            return read;
+        }
+
+        byte[] buffer = new byte[Math.min(dst.remaining(), BUFFER_SIZE)];
+        int total = 0;
+        while (dst.hasRemaining()) {
+            int read = read(inputStream, buffer, 0, Math.min(dst.remaining(), buffer.length));
+            if (read == -1) {
+                break;
+            }
+            dst.put(buffer, 0, read);
+            total += read;
+        }
+        return total == 0 && dst.hasRemaining() ? -1 : total;
+
+    }
+
+    /**
+     * Reads from the stream until len bytes are read or the stream ends.
+     *
+     * @return the number of bytes read or -1 if the stream has ended before any byte is read
+     */
+    public static int read(@NonNull InputStream inputStream, @NonNull byte[] b, int off, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int read = inputStream.read(b, off + total, len - total);
+            if (read == -1) {
+                return total == 0 ? -1 : total;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Copies the rest of the source channel to the target. File channels are transferred by
+     * the kernel when possible.
+     *
+     * @return the number of bytes copied
+     */
+    public static long transfer(
+            @NonNull ReadableByteChannel src,
+            @NonNull WritableByteChannel target
+    ) throws IOException {
+
+        long total = 0;
+
+        if (src instanceof FileChannel) {
+            FileChannel fileChannel = (FileChannel) src;
+            long position = fileChannel.position();
+            long size = fileChannel.size();
+            while (position < size) {
+                long transferred = fileChannel.transferTo(position, size - position, target);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+                total += transferred;
+            }
+            fileChannel.position(position);
+            if (position >= size) {
+                return total;
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        int idleCount = 0;
+
+        while (true) {
+
+            int read = src.read(buffer);
+            if (read == -1) {
+                break;
+            }
+            idleCount = read == 0 ? idleCount + 1 : 0;
+
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                int written = target.write(buffer);
+                idleCount = written == 0 ? idleCount + 1 : 0;
+                checkProgress(idleCount);
+                total += written;
+            }
+            buffer.clear();
+
+            checkProgress(idleCount);
+
+        }
+
+        return total;
+
+    }
+
+    /**
+     * A blocking channel which keeps reading or writing nothing is broken, copying from it
+     * would never end.
+     */
+    private static void checkProgress(int idleCount) throws IOException {
+        if (idleCount > MAX_IDLE_COUNT) {
+            throw new IOException("Channel doesn't make progress");
+        }
+    }
+
+    /**
+     * @param length    the maximum number of bytes to read, a negative value means no limit
+     * @return a stream which ends after the given number of bytes
+     */
+    @NonNull
+    public static InputStream limit(@NonNull InputStream inputStream, long length) {
+        return length < 0 ? inputStream : new LimitedInputStream(inputStream, length);
+    }
+
+    private static class LimitedInputStream extends InputStream {
+
+        private final InputStream inputStream;
+
+        private long remaining;
+
+        LimitedInputStream(InputStream inputStream, long length) {
+            this.inputStream = inputStream;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = inputStream.read();
+            if (b != -1) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = inputStream.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = inputStream.skip(Math.min(n, remaining));
+            if (skipped > 0) {
+                remaining -= skipped;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(inputStream.available(), remaining);
+        }
+
+        @Override
+        public void close() throws IOException {
+            inputStream.close();
+        }
+
+    }
+
+}
@@ -96,6 +96,49 @@ public abstract class BaseNetworkStorageTest<S extends Storage> extends BaseStor
 
     }
 
+    /**
+     * The server ignores the Range header, so the storage has to skip the bytes itself.
+     */
+    @Test
+    @Override
+    public final void testRange() throws Exception {
+
+        MockWebServer server = new MockWebServer();
+        for (int i = 0; i < 5; i++) {
+            Buffer buffer = new Buffer();
+            buffer.readFrom(new ByteArrayInputStream(TestUtils.TEST_DATA_1));
+            server.enqueue(new MockResponse().setBody(buffer));
+        }
+        server.start();
+
+        baseUrl = server.url("/");
+
+        super.testRange();
+
+        server.shutdown();
+
+    }
+
+    @Test
+    @Override
+    public final void testChannels() throws Exception {
+
+        MockWebServer server = new MockWebServer();
+        for (int i = 0; i < 4; i++) {
+            Buffer buffer = new Buffer();
+            buffer.readFrom(new ByteArrayInputStream(TestUtils.TEST_DATA_1));
+            server.enqueue(new MockResponse().setBody(buffer));
+        }
+        server.start();
+
+        baseUrl = server.url("/");
+
+        super.testChannels();
+
+        server.shutdown();
+
+    }
+
     @Test
     @Override
     public final void testInterruption() throws Exception {
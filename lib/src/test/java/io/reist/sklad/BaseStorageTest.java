@@ -21,12 +21,18 @@ import android.support.annotation.NonNull;
 
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
 
 import static io.reist.sklad.TestUtils.TEST_DATA_1;
 import static io.reist.sklad.TestUtils.assertTestObject;
 import static io.reist.sklad.TestUtils.saveTestObject;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
@@ -91,6 +97,51 @@ public abstract class BaseStorageTest<S extends Storage> {
         assertTestObject(storage, TEST_DATA_1.length / 2);
     }
 
+    @Test
+    @CallSuper
+    public void testRange() throws Exception {
+        S storage = createStorage();
+        saveTestObject(storage);
+        TestUtils.assertTestObjectRange(storage, 0, -1);
+        TestUtils.assertTestObjectRange(storage, 1, -1);
+        TestUtils.assertTestObjectRange(storage, 1, 1);
+        TestUtils.assertTestObjectRange(storage, 0, TEST_DATA_1.length + 1);
+        TestUtils.assertTestObjectRange(storage, TEST_DATA_1.length, 1);
+    }
+
+    @Test
+    @CallSuper
+    public void testChannels() throws Exception {
+
+        S storage = createStorage();
+        saveTestObject(storage);
+
+        ReadableByteChannel channel = Storages.openReadChannel(storage, TestUtils.TEST_NAME_1);
+        assertNotNull(channel);
+        assertArrayEquals(TEST_DATA_1, TestUtils.readFully(Channels.newInputStream(channel)));
+        channel.close();
+
+        ByteBuffer buffer = ByteBuffer.allocate(TEST_DATA_1.length);
+        assertEquals(TEST_DATA_1.length - 1, Storages.read(storage, TestUtils.TEST_NAME_1, buffer, 1));
+        assertArrayEquals(
+                Arrays.copyOfRange(TEST_DATA_1, 1, TEST_DATA_1.length),
+                Arrays.copyOf(buffer.array(), buffer.position())
+        );
+
+        buffer.clear();
+        assertEquals(-1, Storages.read(storage, TestUtils.TEST_NAME_1, buffer, TEST_DATA_1.length));
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        long transferred = Storages.transferTo(
+                storage,
+                TestUtils.TEST_NAME_1,
+                Channels.newChannel(outputStream)
+        );
+        assertEquals(TEST_DATA_1.length, transferred);
+        assertArrayEquals(TEST_DATA_1, outputStream.toByteArray());
+
+    }
+
     @Test
     @CallSuper
     public void testInterruption() throws Exception {
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Compares the formats of {@link EncryptedStorage}: sequential throughput and the latency of
+ * reading a small range at a random offset. The results are printed, nothing is asserted about
+ * them.
+ *
+ * Benchmarks are excluded from the unit tests, run them with
+ * {@code ./gradlew :lib:testDebugUnitTest -Pbenchmarks --tests '*BenchmarkTest'}.
+ */
+public class EncryptedStorageBenchmarkTest {
+
+    private static final int OBJECT_SIZE = 4 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int RANGE_LENGTH = 4 * 1024;
+    private static final int RANGE_COUNT = 50;
+    private static final int OPEN_COUNT = 2000;
+    private static final int ITERATIONS = 3;
+
+    @Test
+    public void testFormats() throws Exception {
+
+        for (EncryptedStorage.Format format : EncryptedStorage.Format.values()) {
+            benchmark(format.toString(), createStorage(format));
+        }
+
+        int threads = Math.max(Runtime.getRuntime().availableProcessors(), 2);
+        EncryptedStorage storage = createStorage(EncryptedStorage.Format.AES_CTR);
+        storage.setParallelism(threads, threads * 2);
+        benchmark(EncryptedStorage.Format.AES_CTR + " on " + threads + " threads", storage);
+
+    }
+
+    /**
+     * Opening a stream prepares the key and the cipher, which dominates for small objects.
+     */
+    @Test
+    public void testOpenLatency() throws Exception {
+        for (EncryptedStorage.Format format : EncryptedStorage.Format.values()) {
+
+            EncryptedStorage storage = createStorage(format);
+            TestUtils.saveTestObject(storage, TestUtils.TEST_NAME_1, TestUtils.TEST_DATA_1);
+
+            long writeTime = Long.MAX_VALUE;
+            long readTime = Long.MAX_VALUE;
+            long rangeTime = Long.MAX_VALUE;
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+
+            for (int i = 0; i < ITERATIONS; i++) {
+
+                long start = System.nanoTime();
+                for (int j = 0; j < OPEN_COUNT; j++) {
+                    TestUtils.saveTestObject(storage, TestUtils.TEST_NAME_2, TestUtils.TEST_DATA_1);
+                }
+                writeTime = Math.min(writeTime, (System.nanoTime() - start) / OPEN_COUNT);
+
+                start = System.nanoTime();
+                for (int j = 0; j < OPEN_COUNT; j++) {
+                    drain(storage.openInputStream(TestUtils.TEST_NAME_1), buffer);
+                }
+                readTime = Math.min(readTime, (System.nanoTime() - start) / OPEN_COUNT);
+
+                start = System.nanoTime();
+                for (int j = 0; j < OPEN_COUNT; j++) {
+                    drain(storage.openInputStream(TestUtils.TEST_NAME_1, 1, 1), buffer);
+                }
+                rangeTime = Math.min(rangeTime, (System.nanoTime() - start) / OPEN_COUNT);
+
+            }
+
+            System.out.println(
+                    format + " open latency: write " + writeTime / 1000 + " us" +
+                    ", read " + readTime / 1000 + " us" +
+                    ", range " + rangeTime / 1000 + " us"
+            );
+
+        }
+    }
+
+    private static EncryptedStorage createStorage(EncryptedStorage.Format format) {
+        return new EncryptedStorage(new MemoryStorage(), TestUtils.TEST_DATA_1_CIPHER_KEY, format);
+    }
+
+    private static void benchmark(String name, EncryptedStorage storage) throws IOException {
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        new Random(0).nextBytes(buffer);
+
+        long writeTime = Long.MAX_VALUE;
+        long readTime = Long.MAX_VALUE;
+        long rangeTime = Long.MAX_VALUE;
+
+        Random random = new Random(1);
+
+        // the first iteration warms up the code, the best time is reported
+        for (int i = 0; i < ITERATIONS; i++) {
+
+            long start = System.nanoTime();
+            OutputStream outputStream = storage.openOutputStream(TestUtils.TEST_NAME_1, OBJECT_SIZE);
+            for (int written = 0; written < OBJECT_SIZE; written += buffer.length) {
+                outputStream.write(buffer);
+            }
+            outputStream.close();
+            writeTime = Math.min(writeTime, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            assertEquals(OBJECT_SIZE, drain(storage.openInputStream(TestUtils.TEST_NAME_1), buffer));
+            readTime = Math.min(readTime, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int j = 0; j < RANGE_COUNT; j++) {
+                long offset = random.nextInt(OBJECT_SIZE - RANGE_LENGTH);
+                InputStream inputStream = storage.openInputStream(TestUtils.TEST_NAME_1, offset, RANGE_LENGTH);
+                assertEquals(RANGE_LENGTH, drain(inputStream, buffer));
+            }
+            rangeTime = Math.min(rangeTime, (System.nanoTime() - start) / RANGE_COUNT);
+
+        }
+
+        System.out.println(
+                name + ": write " + throughput(writeTime) + " MB/s" +
+                ", read " + throughput(readTime) + " MB/s" +
+                ", random " + RANGE_LENGTH + " byte range " + rangeTime / 1000 + " us"
+        );
+
+    }
+
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    private static long drain(InputStream inputStream, byte[] buffer) throws IOException {
+        assertNotNull(inputStream);
+        try {
+            long total = 0;
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                total += read;
+            }
+            return total;
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static long throughput(long time) {
+        return OBJECT_SIZE / Math.max(time / 1000, 1);
+    }
+
+}
@@ -19,6 +19,7 @@ package io.reist.sklad;
 import android.support.annotation.NonNull;
 
 import org.junit.Before;
+import org.junit.Test;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
@@ -28,6 +29,13 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 
 /**
  * Created by Reist on 28.06.16.
@@ -76,6 +84,213 @@ public class EncryptedStorageTest extends BaseStorageTest<EncryptedStorage> {
         return createEncryptedStorage(storage);
     }
 
+    @Test
+    public void testBlockRange() throws Exception {
+
+        EncryptedStorage storage = createEncryptedStorage(new MemoryStorage());
+
+        byte[] data = new byte[100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        TestUtils.saveTestObject(storage, TestUtils.TEST_NAME_1, data);
+
+        int[][] ranges = {{0, -1}, {5, 10}, {8, 8}, {13, -1}, {90, 10}, {95, 20}, {96, 4}, {100, 1}};
+        for (int[] range : ranges) {
+            int offset = range[0];
+            int end = range[1] < 0 ? data.length : Math.min(offset + range[1], data.length);
+            InputStream inputStream = storage.openInputStream(TestUtils.TEST_NAME_1, offset, range[1]);
+            assertNotNull(inputStream);
+            assertArrayEquals(Arrays.copyOfRange(data, offset, end), TestUtils.readFully(inputStream));
+            inputStream.close();
+        }
+
+    }
+
+    @Test
+    public void testAesCtrRange() throws Exception {
+
+        EncryptedStorage storage = new EncryptedStorage(
+                new MemoryStorage(),
+                TestUtils.TEST_DATA_1_CIPHER_KEY,
+                EncryptedStorage.Format.AES_CTR
+        );
+
+        byte[] data = new byte[AesCtrFormat.DEFAULT_CHUNK_SIZE * 2 + 100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        TestUtils.saveTestObject(storage, TestUtils.TEST_NAME_1, data);
+        assertArrayEquals(data, TestUtils.readFully(storage.openInputStream(TestUtils.TEST_NAME_1)));
+
+        int chunk = AesCtrFormat.DEFAULT_CHUNK_SIZE;
+        int[][] ranges = {{0, -1}, {5, 10}, {15, 2}, {16, 16}, {chunk - 1, 3}, {chunk * 2 + 99, 10}, {data.length, 1}};
+        for (int[] range : ranges) {
+            int offset = range[0];
+            int end = range[1] < 0 ? data.length : Math.min(offset + range[1], data.length);
+            InputStream inputStream = storage.openInputStream(TestUtils.TEST_NAME_1, offset, range[1]);
+            assertNotNull(inputStream);
+            assertArrayEquals(Arrays.copyOfRange(data, offset, end), TestUtils.readFully(inputStream));
+            inputStream.close();
+        }
+
+        InputStream inputStream = storage.openInputStream(TestUtils.TEST_NAME_1);
+        assertNotNull(inputStream);
+        assertEquals(chunk + 7, inputStream.skip(chunk + 7));
+        assertEquals(data[chunk + 7], (byte) inputStream.read());
+        inputStream.close();
+
+    }
+
+    @Test
+    public void testParallelAesCtr() throws Exception {
+
+        MemoryStorage memoryStorage = new MemoryStorage();
+
+        EncryptedStorage storage = new EncryptedStorage(
+                memoryStorage,
+                TestUtils.TEST_DATA_1_CIPHER_KEY,
+                EncryptedStorage.Format.AES_CTR
+        );
+        storage.setParallelism(4, 3);
+
+        int chunk = AesCtrFormat.DEFAULT_CHUNK_SIZE;
+        byte[] data = new byte[chunk * 10 + 100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+
+        // odd writes cross the chunk boundaries
+        OutputStream outputStream = storage.openOutputStream(TestUtils.TEST_NAME_1, data.length);
+        for (int offset = 0; offset < data.length; offset += 1000) {
+            outputStream.write(data, offset, Math.min(1000, data.length - offset));
+        }
+        outputStream.close();
+
+        assertArrayEquals(data, TestUtils.readFully(storage.openInputStream(TestUtils.TEST_NAME_1)));
+
+        int[][] ranges = {{0, -1}, {7, 20}, {chunk - 5, chunk + 10}, {chunk * 3, -1}, {data.length - 1, 5}};
+        for (int[] range : ranges) {
+            int offset = range[0];
+            int end = range[1] < 0 ? data.length : Math.min(offset + range[1], data.length);
+            InputStream inputStream = storage.openInputStream(TestUtils.TEST_NAME_1, offset, range[1]);
+            assertNotNull(inputStream);
+            assertArrayEquals(Arrays.copyOfRange(data, offset, end), TestUtils.readFully(inputStream));
+            inputStream.close();
+        }
+
+        // skipping within the decrypted chunks and past them
+        InputStream inputStream = storage.openInputStream(TestUtils.TEST_NAME_1);
+        assertNotNull(inputStream);
+        assertEquals(data[0], (byte) inputStream.read());
+        assertEquals(10, inputStream.skip(10));
+        assertEquals(data[11], (byte) inputStream.read());
+        assertEquals(chunk * 6, inputStream.skip(chunk * 6));
+        assertEquals(data[chunk * 6 + 12], (byte) inputStream.read());
+        inputStream.close();
+
+        // the serial streams read what the parallel ones write
+        EncryptedStorage serialStorage = new EncryptedStorage(memoryStorage, TestUtils.TEST_DATA_1_CIPHER_KEY);
+        assertArrayEquals(data, TestUtils.readFully(serialStorage.openInputStream(TestUtils.TEST_NAME_1)));
+
+    }
+
+    /**
+     * Ciphers are shared by the streams, a stream closed in the middle must not affect the
+     * streams opened after it.
+     */
+    @Test
+    public void testCipherReuse() throws Exception {
+
+        final byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 13);
+        }
+
+        for (EncryptedStorage.Format format : EncryptedStorage.Format.values()) {
+
+            final EncryptedStorage storage = new EncryptedStorage(
+                    new MemoryStorage(),
+                    TestUtils.TEST_DATA_1_CIPHER_KEY,
+                    format
+            );
+
+            TestUtils.saveTestObject(storage, TestUtils.TEST_NAME_1, data);
+
+            final AtomicReference<Throwable> error = new AtomicReference<>();
+            Thread[] threads = new Thread[4];
+
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            for (int j = 0; j < 100; j++) {
+
+                                InputStream inputStream = storage.openInputStream(TestUtils.TEST_NAME_1);
+                                assertNotNull(inputStream);
+                                inputStream.read(new byte[j + 1]);
+                                inputStream.close();
+
+                                TestUtils.assertTestObject(storage, TestUtils.TEST_NAME_1, data);
+                                assertArrayEquals(
+                                        Arrays.copyOfRange(data, j, j + 50),
+                                        TestUtils.readFully(storage.openInputStream(TestUtils.TEST_NAME_1, j, 50))
+                                );
+
+                            }
+                        } catch (Throwable e) {
+                            error.set(e);
+                        }
+                    }
+
+                };
+                threads[i].start();
+            }
+
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            assertNull(error.get());
+
+        }
+
+    }
+
+    @Test
+    public void testLegacyFormatIsReadable() throws Exception {
+
+        MemoryStorage memoryStorage = new MemoryStorage();
+
+        byte[] data = new byte[40];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        TestUtils.saveTestObject(createEncryptedStorage(memoryStorage), TestUtils.TEST_NAME_1, data);
+
+        EncryptedStorage storage = new EncryptedStorage(
+                memoryStorage,
+                TestUtils.TEST_DATA_1_CIPHER_KEY,
+                EncryptedStorage.Format.AES_CTR
+        );
+
+        TestUtils.saveTestObject(storage, TestUtils.TEST_NAME_2, data);
+
+        TestUtils.assertTestObject(storage, TestUtils.TEST_NAME_1, data);
+        TestUtils.assertTestObject(storage, TestUtils.TEST_NAME_2, data);
+        TestUtils.assertTestObject(createEncryptedStorage(memoryStorage), TestUtils.TEST_NAME_2, data);
+        assertArrayEquals(
+                Arrays.copyOfRange(data, 13, 19),
+                TestUtils.readFully(storage.openInputStream(TestUtils.TEST_NAME_1, 13, 6))
+        );
+
+    }
+
     @NonNull
     static EncryptedStorage createEncryptedStorage(Storage storage) {
         return new EncryptedStorage(storage, TestUtils.TEST_DATA_1_CIPHER_KEY);
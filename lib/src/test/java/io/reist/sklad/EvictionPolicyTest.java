@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import static io.reist.sklad.TestUtils.TEST_NAME_1;
+import static io.reist.sklad.TestUtils.TEST_NAME_2;
+import static io.reist.sklad.TestUtils.TEST_NAME_3;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class EvictionPolicyTest {
+
+    private static final EvictionPolicy.Filter ALL = new EvictionPolicy.Filter() {
+
+        @Override
+        public boolean isEvictable(@NonNull String id) {
+            return true;
+        }
+
+    };
+
+    @Test
+    public void testFifo() {
+        EvictionPolicy policy = new FifoEvictionPolicy();
+        writeTestObjects(policy);
+        policy.onAccess(TEST_NAME_1);
+        assertEquals(TEST_NAME_1, policy.selectVictim(ALL));
+        policy.onWrite(TEST_NAME_1, 1);
+        assertEvictionOrder(policy, TEST_NAME_2, TEST_NAME_3, TEST_NAME_1);
+    }
+
+    @Test
+    public void testLru() {
+        EvictionPolicy policy = new LruEvictionPolicy();
+        writeTestObjects(policy);
+        policy.onAccess(TEST_NAME_1);
+        policy.onAccess(TEST_NAME_2);
+        assertEvictionOrder(policy, TEST_NAME_3, TEST_NAME_1, TEST_NAME_2);
+    }
+
+    @Test
+    public void testLfu() {
+        EvictionPolicy policy = new LfuEvictionPolicy();
+        writeTestObjects(policy);
+        policy.onAccess(TEST_NAME_1);
+        policy.onAccess(TEST_NAME_1);
+        policy.onAccess(TEST_NAME_3);
+        assertEvictionOrder(policy, TEST_NAME_2, TEST_NAME_3, TEST_NAME_1);
+    }
+
+    @Test
+    public void testGdsf() {
+
+        EvictionPolicy policy = new GdsfEvictionPolicy();
+        policy.onWrite(TEST_NAME_1, 1000);
+        policy.onWrite(TEST_NAME_2, 10);
+        policy.onWrite(TEST_NAME_3, 10);
+        policy.onAccess(TEST_NAME_3);
+
+        // the large object goes first even though it's the oldest one
+        assertEquals(TEST_NAME_1, policy.selectVictim(ALL));
+        policy.onEvict(TEST_NAME_1);
+
+        // the small object which was read survives longer
+        policy.onWrite(TEST_NAME_1, 1000);
+        assertEvictionOrder(policy, TEST_NAME_1, TEST_NAME_2, TEST_NAME_3);
+
+    }
+
+    @Test
+    public void testS3Fifo() {
+
+        EvictionPolicy policy = new S3FifoEvictionPolicy();
+        writeTestObjects(policy);
+
+        // the object read while in the small queue is promoted to the main queue
+        policy.onAccess(TEST_NAME_1);
+        assertEquals(TEST_NAME_2, policy.peekVictim(ALL));
+        assertEquals(TEST_NAME_2, policy.selectVictim(ALL));
+        policy.onEvict(TEST_NAME_2);
+
+        // the evicted object is remembered and goes straight to the main queue
+        policy.onWrite(TEST_NAME_2, 1);
+        assertEquals(TEST_NAME_3, policy.selectVictim(ALL));
+        policy.onEvict(TEST_NAME_3);
+
+        assertEvictionOrder(policy, TEST_NAME_1, TEST_NAME_2);
+
+    }
+
+    @Test
+    public void testS3FifoPeekDoesNotPromote() {
+
+        EvictionPolicy policy = new S3FifoEvictionPolicy();
+        writeTestObjects(policy);
+        policy.onAccess(TEST_NAME_1);
+        policy.onAccess(TEST_NAME_2);
+
+        // peeking doesn't move the objects read while in the small queue to the main queue
+        for (int i = 0; i < 10; i++) {
+            assertEquals(TEST_NAME_3, policy.peekVictim(ALL));
+        }
+
+        // so a read after the peeks still counts
+        policy.onAccess(TEST_NAME_3);
+        assertEquals(TEST_NAME_1, policy.peekVictim(ALL));
+        assertEvictionOrder(policy, TEST_NAME_1, TEST_NAME_2, TEST_NAME_3);
+
+    }
+
+    @Test
+    public void testRemove() {
+        for (EvictionPolicy policy : createPolicies()) {
+            writeTestObjects(policy);
+            policy.onRemove(TEST_NAME_1);
+            policy.onRemove(TEST_NAME_2);
+            assertEvictionOrder(policy, TEST_NAME_3);
+            writeTestObjects(policy);
+            policy.onClear();
+            assertNull(policy.selectVictim(ALL));
+        }
+    }
+
+    @Test
+    public void testFilter() {
+
+        EvictionPolicy.Filter filter = new EvictionPolicy.Filter() {
+
+            @Override
+            public boolean isEvictable(@NonNull String id) {
+                return !TEST_NAME_1.equals(id);
+            }
+
+        };
+
+        for (EvictionPolicy policy : createPolicies()) {
+            writeTestObjects(policy);
+            assertEquals(TEST_NAME_2, policy.selectVictim(filter));
+            policy.onEvict(TEST_NAME_2);
+            assertEquals(TEST_NAME_3, policy.selectVictim(filter));
+            policy.onEvict(TEST_NAME_3);
+            assertNull(policy.selectVictim(filter));
+            assertEquals(TEST_NAME_1, policy.selectVictim(ALL));
+        }
+
+    }
+
+    private static EvictionPolicy[] createPolicies() {
+        return new EvictionPolicy[] {
+                new FifoEvictionPolicy(),
+                new LruEvictionPolicy(),
+                new LfuEvictionPolicy(),
+                new GdsfEvictionPolicy(),
+                new S3FifoEvictionPolicy()
+        };
+    }
+
+    private static void writeTestObjects(EvictionPolicy policy) {
+        policy.onWrite(TEST_NAME_1, 1);
+        policy.onWrite(TEST_NAME_2, 1);
+        policy.onWrite(TEST_NAME_3, 1);
+    }
+
+    private static void assertEvictionOrder(EvictionPolicy policy, String... ids) {
+        for (String id : ids) {
+            assertEquals(id, policy.peekVictim(ALL));
+            assertEquals(id, policy.selectVictim(ALL));
+            policy.onEvict(id);
+        }
+        assertNull(policy.selectVictim(ALL));
+    }
+
+}
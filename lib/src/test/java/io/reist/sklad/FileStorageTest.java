@@ -27,19 +27,33 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicReference;
 
 import io.reist.sklad.utils.FileUtils;
 
 import static io.reist.sklad.TestUtils.TEST_DATA_1;
+import static io.reist.sklad.TestUtils.TEST_DATA_2;
+import static io.reist.sklad.TestUtils.TEST_DATA_3;
 import static io.reist.sklad.TestUtils.TEST_NAME_1;
+import static io.reist.sklad.TestUtils.TEST_NAME_2;
+import static io.reist.sklad.TestUtils.TEST_NAME_3;
 import static io.reist.sklad.TestUtils.saveTestObject;
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.fail;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -114,6 +128,384 @@ public class FileStorageTest extends BaseStorageTest<FileStorage> {
 
     }
 
+    @Test
+    public void testUsedSpace() throws IOException {
+
+        FileStorage storage = createStorage();
+        storage.deleteAll();
+        assertEquals(0, storage.getUsedSpace());
+
+        saveTestObject(storage, TEST_NAME_1, TEST_DATA_1);
+        saveTestObject(storage, TEST_NAME_2, TEST_DATA_2);
+        assertEquals(TEST_DATA_1.length + TEST_DATA_2.length, storage.getUsedSpace());
+
+        // overwriting an object only accounts for the difference
+        saveTestObject(storage, TEST_NAME_1, TEST_DATA_3);
+        assertEquals(TEST_DATA_3.length + TEST_DATA_2.length, storage.getUsedSpace());
+
+        storage.delete(TEST_NAME_2);
+        assertEquals(TEST_DATA_3.length, storage.getUsedSpace());
+
+        // changes made bypassing the storage are picked up only by reconcile
+        FileOutputStream outputStream = new FileOutputStream(storage.getFileById(TEST_NAME_2));
+        outputStream.write(TEST_DATA_2);
+        outputStream.close();
+        assertFalse(storage.contains(TEST_NAME_2));
+        assertEquals(TEST_DATA_3.length, storage.getUsedSpace());
+
+        storage.reconcile();
+        assertTrue(storage.contains(TEST_NAME_2));
+        assertEquals(TEST_DATA_3.length + TEST_DATA_2.length, storage.getUsedSpace());
+
+        storage.deleteAll();
+        assertEquals(0, storage.getUsedSpace());
+
+    }
+
+    @Test
+    public void testJournal() throws IOException {
+
+        File root = new File(RuntimeEnvironment.application.getCacheDir(), "journal_test");
+        File journalFile = new File(root, "journal");
+
+        FileStorage storage = new FileStorage(root, FileUtils.DEFAULT_FILTER, journalFile);
+        saveTestObject(storage, TEST_NAME_1, TEST_DATA_1);
+        saveTestObject(storage, TEST_NAME_2, TEST_DATA_2);
+        storage.delete(TEST_NAME_1);
+        saveTestObject(storage, TEST_NAME_3, TEST_DATA_3);
+
+        assertTrue(journalFile.exists());
+
+        // the journal is not an object
+        assertFalse(storage.contains(journalFile.getName()));
+        assertEquals(TEST_DATA_2.length + TEST_DATA_3.length, storage.getUsedSpace());
+
+        // a file created bypassing the storage is not visible when the index is loaded from the journal
+        FileOutputStream outputStream = new FileOutputStream(storage.getFileById(TEST_NAME_1));
+        outputStream.write(TEST_DATA_1);
+        outputStream.close();
+
+        FileStorage restored = new FileStorage(root, FileUtils.DEFAULT_FILTER, journalFile);
+        assertFalse(restored.contains(TEST_NAME_1));
+        assertTrue(restored.contains(TEST_NAME_2));
+        assertTrue(restored.contains(TEST_NAME_3));
+        assertEquals(TEST_NAME_2, restored.getOldestId());
+        assertEquals(TEST_DATA_2.length + TEST_DATA_3.length, restored.getUsedSpace());
+
+        // a corrupt journal makes the storage walk the directory
+        outputStream = new FileOutputStream(journalFile);
+        outputStream.write(TEST_DATA_1);
+        outputStream.close();
+
+        FileStorage rescanned = new FileStorage(root, FileUtils.DEFAULT_FILTER, journalFile);
+        assertTrue(rescanned.contains(TEST_NAME_1));
+        assertTrue(rescanned.contains(TEST_NAME_2));
+        assertTrue(rescanned.contains(TEST_NAME_3));
+        assertEquals(
+                TEST_DATA_1.length + TEST_DATA_2.length + TEST_DATA_3.length,
+                rescanned.getUsedSpace()
+        );
+
+        rescanned.deleteAll();
+        assertEquals(0, new FileStorage(root, FileUtils.DEFAULT_FILTER, journalFile).getUsedSpace());
+
+    }
+
+    @Test
+    public void testExpirationJournal() throws IOException {
+
+        File root = new File(RuntimeEnvironment.application.getCacheDir(), "expiration_test");
+        File journalFile = new File(root, "journal");
+
+        FileStorage storage = new FileStorage(root, FileUtils.DEFAULT_FILTER, journalFile);
+        saveTestObject(storage, TEST_NAME_1, TEST_DATA_1);
+        saveTestObject(storage, TEST_NAME_2, TEST_DATA_2);
+        storage.setExpiration(TEST_NAME_1, 1000);
+        storage.setExpiration(TEST_NAME_2, 2000);
+        storage.setExpiration(TEST_NAME_3, 3000);
+
+        // rewriting drops the expiration time
+        saveTestObject(storage, TEST_NAME_2, TEST_DATA_2);
+        assertEquals(Collections.singletonMap(TEST_NAME_1, 1000L), storage.getExpirations());
+
+        FileStorage restored = new FileStorage(root, FileUtils.DEFAULT_FILTER, journalFile);
+        assertEquals(Collections.singletonMap(TEST_NAME_1, 1000L), restored.getExpirations());
+
+        // setting an expiration time doesn't change the modification order
+        assertEquals(TEST_NAME_1, restored.getOldestId());
+
+        // expiration times can't be found in the directory, they survive walking it
+        restored.reconcile();
+        assertEquals(Collections.singletonMap(TEST_NAME_1, 1000L), restored.getExpirations());
+
+        restored.setExpiration(TEST_NAME_1, 0);
+        assertTrue(new FileStorage(root, FileUtils.DEFAULT_FILTER, journalFile).getExpirations().isEmpty());
+
+        restored.deleteAll();
+
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+
+        final FileStorage storage = createStorage();
+        storage.deleteAll();
+
+        final int threadCount = 8;
+        final int objectCount = 50;
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final int threadIndex = i;
+            threads[i] = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < objectCount; j++) {
+                            String id = threadIndex + "_" + j;
+                            saveTestObject(storage, id, TEST_DATA_1);
+                            assertTrue(storage.contains(id));
+                            if (j % 2 == 0) {
+                                assertTrue(storage.delete(id));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+
+            };
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+
+        long expectedUsedSpace = threadCount * (objectCount / 2) * TEST_DATA_1.length;
+        assertEquals(expectedUsedSpace, storage.getUsedSpace());
+
+        storage.reconcile();
+        assertEquals(expectedUsedSpace, storage.getUsedSpace());
+
+    }
+
+    @Test
+    public void testConcurrentPositionalReads() throws Exception {
+
+        final FileStorage storage = createStorage();
+
+        final byte[] data = new byte[64 * 1024];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        saveTestObject(storage, TEST_NAME_2, data);
+
+        final int threadCount = 8;
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final int threadIndex = i;
+            threads[i] = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        ByteBuffer buffer = ByteBuffer.allocate(1000);
+                        for (int position = threadIndex; position < data.length; position += 997) {
+                            buffer.clear();
+                            int read = storage.read(TEST_NAME_2, buffer, position);
+                            int expected = Math.min(buffer.capacity(), data.length - position);
+                            assertEquals(expected, read);
+                            assertArrayEquals(
+                                    Arrays.copyOfRange(data, position, position + expected),
+                                    Arrays.copyOf(buffer.array(), read)
+                            );
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+
+            };
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+
+        // the file which stays open for positional reads is replaced by a rewrite
+        saveTestObject(storage, TEST_NAME_2, TEST_DATA_1);
+        ByteBuffer buffer = ByteBuffer.allocate(data.length);
+        assertEquals(TEST_DATA_1.length, storage.read(TEST_NAME_2, buffer, 0));
+        assertArrayEquals(TEST_DATA_1, Arrays.copyOf(buffer.array(), TEST_DATA_1.length));
+
+        storage.delete(TEST_NAME_2);
+        try {
+            storage.read(TEST_NAME_2, buffer, 0);
+            fail();
+        } catch (FileNotFoundException ignored) {}
+
+        saveTestObject(storage, TEST_NAME_2, data);
+        assertTrue(storage.openReadChannel(TEST_NAME_2) instanceof FileChannel);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        assertEquals(data.length, storage.transferTo(TEST_NAME_2, Channels.newChannel(outputStream)));
+        Assert.assertArrayEquals(data, outputStream.toByteArray());
+
+    }
+
+    @Test
+    public void testMemoryMapping() throws IOException {
+
+        FileStorage storage = createStorage();
+        storage.deleteAll();
+        storage.setMemoryMapping(1024, 2048);
+
+        MappedBufferCache cache = storage.getMappedBufferCache();
+        assertNotNull(cache);
+
+        saveTestObject(storage);
+        TestUtils.assertTestObject(storage);
+        TestUtils.assertTestObjectRange(storage, 1, 1);
+        assertEquals(TEST_DATA_1.length, cache.getSize());
+
+        // a reader keeps its version of the object
+        InputStream inputStream = storage.openInputStream(TEST_NAME_1);
+        assertNotNull(inputStream);
+        saveTestObject(storage, TEST_NAME_1, TEST_DATA_2);
+        assertEquals(0, cache.getSize());
+        assertArrayEquals(TEST_DATA_1, TestUtils.readFully(inputStream));
+        inputStream.close();
+
+        inputStream = storage.openInputStream(TEST_NAME_1);
+        assertNotNull(inputStream);
+        assertArrayEquals(TEST_DATA_2, TestUtils.readFully(inputStream));
+        inputStream.close();
+
+        assertTrue(storage.delete(TEST_NAME_1));
+        assertNull(storage.openInputStream(TEST_NAME_1));
+        assertEquals(0, cache.getSize());
+
+        // the cache is bounded and objects which are too large aren't mapped
+        byte[] data = new byte[1000];
+        for (int i = 0; i < 4; i++) {
+            saveTestObject(storage, TEST_NAME_1 + i, data);
+            storage.openInputStream(TEST_NAME_1 + i).close();
+            assertTrue(cache.getSize() <= 2048);
+        }
+        saveTestObject(storage, TEST_NAME_2, new byte[2000]);
+        inputStream = storage.openInputStream(TEST_NAME_2);
+        assertNotNull(inputStream);
+        assertEquals(2000, TestUtils.readFully(inputStream).length);
+        inputStream.close();
+        assertTrue(cache.getSize() <= 2048);
+
+        storage.deleteAll();
+        assertEquals(0, cache.getSize());
+
+    }
+
+    @Test
+    public void testSizeHint() throws IOException {
+
+        FileStorage storage = createStorage();
+        storage.deleteAll();
+
+        // fewer bytes than expected, the preallocated file is truncated
+        saveTestObject(storage, TEST_NAME_1, TEST_DATA_1, 1024);
+        assertEquals(TEST_DATA_1.length, storage.getFileById(TEST_NAME_1).length());
+
+        saveTestObject(storage, TEST_NAME_2, TEST_DATA_2, TEST_DATA_2.length);
+        saveTestObject(storage, TEST_NAME_3, TEST_DATA_3, 1);
+
+        TestUtils.assertTestObject(storage, TEST_NAME_1, TEST_DATA_1);
+        TestUtils.assertTestObject(storage, TEST_NAME_2, TEST_DATA_2);
+        TestUtils.assertTestObject(storage, TEST_NAME_3, TEST_DATA_3);
+        assertEquals(TEST_DATA_1.length + TEST_DATA_2.length + TEST_DATA_3.length, storage.getUsedSpace());
+
+    }
+
+    @Test
+    public void testNegativeOffset() throws IOException {
+
+        FileStorage storage = createStorage();
+        saveTestObject(storage, TEST_NAME_1, TEST_DATA_1);
+
+        InputStream inputStream = storage.openInputStream(TEST_NAME_1, -1, -1);
+        assertNotNull(inputStream);
+        assertArrayEquals(TEST_DATA_1, TestUtils.readFully(inputStream));
+        inputStream.close();
+
+    }
+
+    @Test
+    public void testAtomicCommit() throws IOException {
+
+        FileStorage storage = createStorage();
+        saveTestObject(storage, TEST_NAME_1, TEST_DATA_1);
+
+        OutputStream outputStream = storage.openOutputStream(TEST_NAME_1);
+        outputStream.write(TEST_DATA_2);
+        outputStream.flush();
+
+        // readers see the previous version until the stream is closed
+        TestUtils.assertTestObject(storage);
+        assertEquals(TEST_DATA_1.length, storage.getFileById(TEST_NAME_1).length());
+
+        outputStream.close();
+
+        InputStream inputStream = storage.openInputStream(TEST_NAME_1);
+        assertNotNull(inputStream);
+        byte[] buffer = new byte[TEST_DATA_2.length];
+        assertEquals(TEST_DATA_2.length, inputStream.read(buffer));
+        inputStream.close();
+        Assert.assertArrayEquals(TEST_DATA_2, buffer);
+
+        String[] names = storage.getParent().list();
+        assertEquals(1, names.length);
+
+    }
+
+    @Test
+    public void testCrashedWriteCleanup() throws IOException {
+
+        File root = new File(RuntimeEnvironment.application.getCacheDir(), "crash_test");
+        File journalFile = new File(root, "journal");
+
+        // never closed, as if the process has crashed
+        new FileStorage(root).openOutputStream(TEST_NAME_1).write(TEST_DATA_1);
+        assertEquals(1, root.list().length);
+
+        // the directory walk removes the temporary file
+        FileStorage storage = new FileStorage(root);
+        assertFalse(storage.contains(TEST_NAME_1));
+        assertEquals(0, root.list().length);
+
+        FileStorage journaled = new FileStorage(root, FileUtils.DEFAULT_FILTER, journalFile);
+        assertEquals(0, journaled.getUsedSpace());
+        journaled.openOutputStream(TEST_NAME_2).write(TEST_DATA_2);
+        assertEquals(2, root.list().length);
+
+        // the journal has recorded the temporary file, so it's removed without walking the directory
+        journaled = new FileStorage(root, FileUtils.DEFAULT_FILTER, journalFile);
+        assertFalse(journaled.contains(TEST_NAME_2));
+        Assert.assertArrayEquals(new String[] {journalFile.getName()}, root.list());
+
+    }
+
     @Test
     public void filterTest() throws IOException, InterruptedException {
 
@@ -18,13 +18,24 @@ package io.reist.sklad;
 
 import android.os.Build;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.reist.sklad.utils.FileUtils;
 
 import static io.reist.sklad.TestUtils.TEST_DATA_1;
 import static io.reist.sklad.TestUtils.TEST_DATA_2;
@@ -32,10 +43,16 @@ import static io.reist.sklad.TestUtils.TEST_DATA_3;
 import static io.reist.sklad.TestUtils.TEST_NAME_1;
 import static io.reist.sklad.TestUtils.TEST_NAME_2;
 import static io.reist.sklad.TestUtils.TEST_NAME_3;
+import static io.reist.sklad.TestUtils.assertTestObject;
+import static io.reist.sklad.TestUtils.readFully;
 import static io.reist.sklad.TestUtils.saveTestObject;
+import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
 import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.fail;
+import static org.junit.Assert.assertArrayEquals;
 
 /**
  * Created by Reist on 28.06.16.
@@ -72,6 +89,27 @@ public class LimitedStorageTest extends BaseStorageTest<LimitedStorage> {
         assertTrue(storage.contains(TEST_NAME_3));
     }
 
+    @Test
+    public void testSizeHint() throws IOException {
+
+        LimitedStorage storage = createStorage();
+        saveTestObject(storage, TEST_NAME_1, TEST_DATA_1);
+        saveTestObject(storage, TEST_NAME_2, TEST_DATA_2);
+
+        // the space is freed before anything is written
+        OutputStream outputStream = storage.openOutputStream(TEST_NAME_3, TEST_DATA_3.length);
+        assertFalse(storage.contains(TEST_NAME_1));
+        assertTrue(storage.contains(TEST_NAME_2));
+
+        outputStream.write(TEST_DATA_3);
+        outputStream.flush();
+        outputStream.close();
+
+        assertTrue(storage.contains(TEST_NAME_2));
+        assertTrue(storage.contains(TEST_NAME_3));
+
+    }
+
     @Test
     public void testLimitChange() throws IOException {
 
@@ -118,4 +156,649 @@ public class LimitedStorageTest extends BaseStorageTest<LimitedStorage> {
 
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testEvictionPolicy() throws IOException {
+
+        LimitedStorage storage = new LimitedStorage(
+                new MemoryStorage(),
+                TEST_DATA_1.length + TEST_DATA_2.length,
+                new LruEvictionPolicy()
+        );
+
+        saveTestObject(storage, TEST_NAME_1, TEST_DATA_1);
+        saveTestObject(storage, TEST_NAME_2, TEST_DATA_2);
+        assertTestObject(storage, TEST_NAME_1, TEST_DATA_1);
+        saveTestObject(storage, TEST_NAME_3, TEST_DATA_3);
+
+        assertTrue(storage.contains(TEST_NAME_1));
+        assertFalse(storage.contains(TEST_NAME_2));
+        assertTrue(storage.contains(TEST_NAME_3));
+
+        assertEquals(1, storage.getHitCount());
+        assertEquals(0, storage.getMissCount());
+
+    }
+
+    @Test
+    public void testHitRatio() throws IOException {
+
+        EvictionPolicy[] policies = {
+                null,
+                new FifoEvictionPolicy(),
+                new LruEvictionPolicy(),
+                new LfuEvictionPolicy(),
+                new GdsfEvictionPolicy(),
+                new S3FifoEvictionPolicy()
+        };
+
+        double[] hitRatios = new double[policies.length];
+        for (int i = 0; i < policies.length; i++) {
+            hitRatios[i] = replaySkewedTrace(policies[i]);
+            System.out.println(
+                    (policies[i] == null ? "Oldest first" : policies[i].getClass().getSimpleName()) +
+                            ": " + hitRatios[i]
+            );
+        }
+
+        for (int i = 1; i < policies.length; i++) {
+            assertTrue(hitRatios[i] > 0 && hitRatios[i] < 1);
+        }
+
+        // the default behaviour is the same as the one of fifo
+        assertEquals(hitRatios[0], hitRatios[1], 0);
+
+        // frequency aware policies do better on a skewed trace
+        assertTrue(hitRatios[3] > hitRatios[1]);
+        assertTrue(hitRatios[5] > hitRatios[1]);
+
+    }
+
+    @Test
+    public void testReservation() throws IOException {
+
+        LimitedStorage storage = new LimitedStorage(new MemoryStorage(), 1024 * 1024);
+
+        OutputStream outputStream = storage.openOutputStream(TEST_NAME_1);
+        outputStream.write(TEST_DATA_1[0]);
+        assertEquals(LimitedStorage.RESERVATION_BLOCK_SIZE, storage.getReservedSpace());
+
+        // the block covers the following writes
+        outputStream.write(TEST_DATA_1, 1, TEST_DATA_1.length - 1);
+        assertEquals(LimitedStorage.RESERVATION_BLOCK_SIZE, storage.getReservedSpace());
+
+        outputStream.close();
+        assertEquals(0, storage.getReservedSpace());
+        assertTestObject(storage, TEST_NAME_1, TEST_DATA_1);
+
+    }
+
+    @Test
+    public void testBackgroundEviction() throws Exception {
+
+        final int objectSize = 10;
+
+        LimitedStorage storage = new LimitedStorage(new MemoryStorage(), 10 * objectSize);
+        storage.setWatermarks(2 * objectSize, 5 * objectSize);
+
+        byte[] data = new byte[objectSize];
+        for (int i = 0; i < 6; i++) {
+            saveTestObject(storage, Integer.toString(i), data);
+        }
+
+        // the writer wasn't blocked, the objects are evicted by another thread
+        long deadline = System.currentTimeMillis() + 5000;
+        while (storage.contains("3") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertFalse(storage.contains("0"));
+        assertFalse(storage.contains("3"));
+        assertTrue(storage.contains("4"));
+        assertTrue(storage.contains("5"));
+
+    }
+
+    @Test
+    public void testWriterIsNotEvicted() throws IOException {
+        for (LimitedStorage storage : createPinningTestStorages()) {
+
+            saveTestObject(storage, TEST_NAME_1, TEST_DATA_1);
+            OutputStream outputStream = storage.openOutputStream(TEST_NAME_1);
+            saveTestObject(storage, TEST_NAME_2, TEST_DATA_2);
+
+            // the oldest object is being rewritten, so the next one is evicted
+            outputStream.write(TEST_DATA_3);
+            outputStream.close();
+
+            assertFalse(storage.contains(TEST_NAME_2));
+            assertTestObject(storage, TEST_NAME_1, TEST_DATA_3);
+
+        }
+    }
+
+    @Test
+    public void testReaderIsNotEvicted() throws IOException {
+        for (LimitedStorage storage : createPinningTestStorages()) {
+
+            saveTestObject(storage, TEST_NAME_1, TEST_DATA_1);
+            saveTestObject(storage, TEST_NAME_2, TEST_DATA_2);
+
+            InputStream inputStream = storage.openInputStream(TEST_NAME_1);
+            assertNotNull(inputStream);
+            assertEquals(1, storage.getPinCount(TEST_NAME_1));
+            assertEquals(1, storage.getPinnedObjectCount());
+
+            // the oldest object is being read, so the next one is evicted
+            assertEquals(TEST_NAME_2, storage.getVictim(TEST_DATA_3.length));
+            saveTestObject(storage, TEST_NAME_3, TEST_DATA_3);
+            assertTrue(storage.contains(TEST_NAME_1));
+            assertFalse(storage.contains(TEST_NAME_2));
+
+            assertArrayEquals(TEST_DATA_1, readFully(inputStream));
+            inputStream.close();
+            inputStream.close();
+
+            assertEquals(0, storage.getPinCount(TEST_NAME_1));
+            assertEquals(0, storage.getPinnedObjectCount());
+
+        }
+    }
+
+    /**
+     * @return storages which fit the first two test objects, with and without a policy
+     */
+    private static LimitedStorage[] createPinningTestStorages() {
+        long capacity = TEST_DATA_1.length + TEST_DATA_2.length;
+        return new LimitedStorage[] {
+                new LimitedStorage(new MemoryStorage(), capacity, new FifoEvictionPolicy()),
+                new LimitedStorage(new MemoryStorage(), capacity)
+        };
+    }
+
+    @Test
+    public void testPinnedObjectIsReclaimed() throws IOException {
+
+        LimitedStorage storage = createStorage();
+
+        saveTestObject(storage, TEST_NAME_1, TEST_DATA_1);
+        saveTestObject(storage, TEST_NAME_2, TEST_DATA_2);
+
+        InputStream inputStream1 = storage.openInputStream(TEST_NAME_1);
+        InputStream inputStream2 = storage.openInputStream(TEST_NAME_1);
+        ReadableByteChannel channel = storage.openReadChannel(TEST_NAME_2);
+        assertNotNull(inputStream1);
+        assertNotNull(inputStream2);
+        assertNotNull(channel);
+        assertEquals(2, storage.getPinCount(TEST_NAME_1));
+
+        // nothing can be evicted, the only writer is allowed to exceed the capacity
+        saveTestObject(storage, TEST_NAME_3, TEST_DATA_3);
+        assertTrue(storage.contains(TEST_NAME_1));
+        assertTrue(storage.contains(TEST_NAME_2));
+
+        inputStream1.close();
+        assertTrue(storage.contains(TEST_NAME_1));
+
+        // the last reader is closed
+        inputStream2.close();
+        assertFalse(storage.contains(TEST_NAME_1));
+        assertTrue(storage.contains(TEST_NAME_2));
+        assertTrue(storage.contains(TEST_NAME_3));
+
+        channel.close();
+        assertTrue(storage.contains(TEST_NAME_2));
+
+    }
+
+    @Test
+    public void testNotEnoughSpace() throws IOException {
+
+        LimitedStorage storage = createStorage();
+
+        OutputStream outputStream1 = storage.openOutputStream(TEST_NAME_1);
+        outputStream1.write(TEST_DATA_1);
+        outputStream1.write(TEST_DATA_2);
+
+        // the first stream has reserved all space and there is nothing to evict
+        OutputStream outputStream2 = storage.openOutputStream(TEST_NAME_2);
+        try {
+            outputStream2.write(TEST_DATA_2);
+            fail();
+        } catch (IOException ignored) {}
+        outputStream2.close();
+
+        outputStream1.close();
+
+        assertEquals(0, storage.getReservedSpace());
+        assertTrue(storage.contains(TEST_NAME_1));
+
+    }
+
+    @Test
+    public void testConcurrentWrites() throws Exception {
+
+        final int objectSize = 10 * 1024;
+        final long capacity = 8 * LimitedStorage.RESERVATION_BLOCK_SIZE;
+
+        final MemoryStorage memoryStorage = new MemoryStorage();
+        final LimitedStorage storage = new LimitedStorage(memoryStorage, capacity, new LruEvictionPolicy());
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final AtomicBoolean done = new AtomicBoolean();
+
+        Thread[] writers = new Thread[4];
+        for (int i = 0; i < writers.length; i++) {
+            final int writerIndex = i;
+            writers[i] = new Thread() {
+
+                @Override
+                public void run() {
+                    byte[] chunk = new byte[1024];
+                    try {
+                        for (int j = 0; j < 100; j++) {
+                            OutputStream outputStream = storage.openOutputStream(writerIndex + "_" + j);
+                            for (int k = 0; k < objectSize / chunk.length; k++) {
+                                outputStream.write(chunk);
+                            }
+                            outputStream.close();
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+
+            };
+        }
+
+        Thread monitor = new Thread() {
+
+            @Override
+            public void run() {
+                while (!done.get()) {
+                    if (memoryStorage.getUsedSpace() > capacity) {
+                        error.compareAndSet(null, new AssertionError("Capacity exceeded"));
+                    }
+                }
+            }
+
+        };
+
+        monitor.start();
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        done.set(true);
+        monitor.join();
+
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+
+        assertEquals(0, storage.getReservedSpace());
+        assertTrue(memoryStorage.getUsedSpace() <= capacity);
+
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+
+        MemoryStorage memoryStorage = new MemoryStorage();
+        LimitedStorage storage = createLimitedStorage(memoryStorage);
+        storage.setDefaultTimeToLive(100);
+
+        saveTestObject(storage, TEST_NAME_1, TEST_DATA_1);
+
+        OutputStream outputStream = storage.openOutputStream(TEST_NAME_2, -1, -1);
+        outputStream.write(TEST_DATA_2);
+        outputStream.close();
+
+        assertTrue(storage.contains(TEST_NAME_1));
+        Thread.sleep(150);
+
+        // the expired object is missing even if it hasn't been deleted yet
+        assertFalse(storage.contains(TEST_NAME_1));
+        assertNull(storage.openInputStream(TEST_NAME_1));
+        assertNull(storage.openInputStream(TEST_NAME_1, 1, 1));
+        assertTestObject(storage, TEST_NAME_2, TEST_DATA_2);
+
+        // the sweeper deletes it
+        long deadline = System.currentTimeMillis() + 5000;
+        while (memoryStorage.contains(TEST_NAME_1) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(memoryStorage.contains(TEST_NAME_1));
+        assertTrue(memoryStorage.contains(TEST_NAME_2));
+
+        // rewriting without a time to live makes the object permanent
+        storage.setDefaultTimeToLive(0);
+        saveTestObject(storage, TEST_NAME_1, TEST_DATA_1);
+        Thread.sleep(150);
+        assertTestObject(storage, TEST_NAME_1, TEST_DATA_1);
+
+    }
+
+    @Test
+    public void testEarlierExpiryWakesSweeper() throws Exception {
+
+        MemoryStorage memoryStorage = new MemoryStorage();
+        LimitedStorage storage = createLimitedStorage(memoryStorage);
+
+        // the sweeper waits for the first object
+        OutputStream outputStream = storage.openOutputStream(TEST_NAME_1, -1, 60000);
+        outputStream.write(TEST_DATA_1);
+        outputStream.close();
+
+        outputStream = storage.openOutputStream(TEST_NAME_2, -1, 50);
+        outputStream.write(TEST_DATA_2);
+        outputStream.close();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (memoryStorage.contains(TEST_NAME_2) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(memoryStorage.contains(TEST_NAME_2));
+        assertTrue(storage.contains(TEST_NAME_1));
+
+    }
+
+    @Test
+    public void testExpiryIsPersisted() throws Exception {
+
+        File root = new File(RuntimeEnvironment.application.getCacheDir(), "expiry_test");
+        File journalFile = new File(root, "journal");
+
+        FileStorage fileStorage = new FileStorage(root, FileUtils.DEFAULT_FILTER, journalFile);
+        fileStorage.deleteAll();
+
+        LimitedStorage storage = createLimitedStorage(fileStorage);
+        OutputStream outputStream = storage.openOutputStream(TEST_NAME_1, -1, 60000);
+        outputStream.write(TEST_DATA_1);
+        outputStream.close();
+        saveTestObject(storage, TEST_NAME_2, TEST_DATA_2);
+        assertEquals(1, fileStorage.getExpirations().size());
+
+        // the object expires while the process isn't running
+        fileStorage.setExpiration(TEST_NAME_1, System.currentTimeMillis() - 1);
+        FileStorage restoredFileStorage = new FileStorage(root, FileUtils.DEFAULT_FILTER, journalFile);
+        LimitedStorage restored = createLimitedStorage(restoredFileStorage);
+
+        assertFalse(restored.contains(TEST_NAME_1));
+        assertNull(restored.openInputStream(TEST_NAME_1));
+        assertTestObject(restored, TEST_NAME_2, TEST_DATA_2);
+
+        // the sweeper deletes it
+        long deadline = System.currentTimeMillis() + 5000;
+        while (restoredFileStorage.contains(TEST_NAME_1) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(restoredFileStorage.contains(TEST_NAME_1));
+
+        restored.deleteAll();
+
+    }
+
+    @Test
+    public void testExpiredObjectIsEvictedFirst() throws Exception {
+
+        LimitedStorage storage = createStorage();
+
+        saveTestObject(storage, TEST_NAME_1, TEST_DATA_1);
+        OutputStream outputStream = storage.openOutputStream(TEST_NAME_2, -1, 50);
+        outputStream.write(TEST_DATA_2);
+        outputStream.close();
+
+        // the sweeper may be faster, the result is the same
+        Thread.sleep(100);
+        saveTestObject(storage, TEST_NAME_3, TEST_DATA_3);
+
+        assertTrue(storage.contains(TEST_NAME_1));
+        assertFalse(storage.contains(TEST_NAME_2));
+        assertTrue(storage.contains(TEST_NAME_3));
+
+    }
+
+    @Test
+    public void testNamespaces() throws IOException {
+
+        final int objectSize = 10;
+
+        LimitedStorage storage = new LimitedStorage(new MemoryStorage(), 10 * objectSize);
+        storage.setClassifier(new LimitedStorage.PrefixClassifier("audio/", "art/"));
+        storage.setGuaranteedSpace("art/", 4 * objectSize);
+
+        byte[] data = new byte[objectSize];
+        for (int i = 0; i < 4; i++) {
+            saveTestObject(storage, "art/" + i, data);
+        }
+        for (int i = 0; i < 10; i++) {
+            saveTestObject(storage, "audio/" + i, data);
+        }
+
+        // audio can't take the space guaranteed to art, so it evicts its own objects
+        for (int i = 0; i < 4; i++) {
+            assertTrue(storage.contains("art/" + i));
+            assertFalse(storage.contains("audio/" + i));
+        }
+        assertEquals(4 * objectSize, storage.getUsedSpace("art/"));
+        assertEquals(6 * objectSize, storage.getUsedSpace("audio/"));
+        assertEquals(0, storage.getEvictionCount("art/"));
+        assertEquals(4, storage.getEvictionCount("audio/"));
+
+    }
+
+    @Test
+    public void testBorrowedSpace() throws IOException {
+
+        final int objectSize = 10;
+
+        LimitedStorage storage = new LimitedStorage(new MemoryStorage(), 10 * objectSize);
+        storage.setClassifier(new LimitedStorage.PrefixClassifier("audio/", "art/"));
+        storage.setGuaranteedSpace("art/", 4 * objectSize);
+        storage.setGuaranteedSpace("audio/", 4 * objectSize);
+
+        // art borrows the space nobody uses
+        byte[] data = new byte[objectSize];
+        for (int i = 0; i < 6; i++) {
+            saveTestObject(storage, "art/" + i, data);
+        }
+        assertEquals(6 * objectSize, storage.getUsedSpace("art/"));
+
+        // audio takes its guaranteed space back
+        for (int i = 0; i < 5; i++) {
+            saveTestObject(storage, "audio/" + i, data);
+        }
+
+        assertFalse(storage.contains("art/0"));
+        assertTrue(storage.contains("art/1"));
+        assertTrue(storage.contains("audio/0"));
+        assertEquals(5 * objectSize, storage.getUsedSpace("art/"));
+        assertEquals(5 * objectSize, storage.getUsedSpace("audio/"));
+        assertEquals(1, storage.getEvictionCount("art/"));
+        assertEquals(0, storage.getEvictionCount("audio/"));
+
+    }
+
+    @Test
+    public void testGuaranteedSpaceExceedsCapacity() {
+
+        LimitedStorage storage = new LimitedStorage(new MemoryStorage(), 10);
+        storage.setClassifier(new LimitedStorage.PrefixClassifier("audio/", "art/"));
+        storage.setGuaranteedSpace("art/", 6);
+
+        try {
+            storage.setGuaranteedSpace("audio/", 5);
+            fail("Guaranteed space can't exceed the capacity");
+        } catch (IllegalArgumentException ignored) {}
+
+        try {
+            storage.setGuaranteedSpace("audio/", -1);
+            fail("Guaranteed space can't be negative");
+        } catch (IllegalArgumentException ignored) {}
+
+        storage.setGuaranteedSpace("art/", 5);
+        storage.setGuaranteedSpace("audio/", 5);
+        assertEquals(5, storage.getGuaranteedSpace("audio/"));
+
+    }
+
+    @Test
+    public void testGuaranteedSpaceAfterRestart() throws IOException {
+
+        final int objectSize = 10;
+
+        // objects written by a previous instance
+        MemoryStorage memoryStorage = new MemoryStorage();
+        byte[] data = new byte[objectSize];
+        for (int i = 0; i < 6; i++) {
+            saveTestObject(memoryStorage, "art/" + i, data);
+        }
+        for (int i = 0; i < 4; i++) {
+            saveTestObject(memoryStorage, "audio/" + i, data);
+        }
+
+        LimitedStorage storage = new LimitedStorage(memoryStorage, 10 * objectSize);
+        storage.setClassifier(new LimitedStorage.PrefixClassifier("audio/", "art/"));
+        storage.setGuaranteedSpace("art/", 4 * objectSize);
+
+        for (int i = 4; i < 20; i++) {
+            saveTestObject(storage, "audio/" + i, data);
+        }
+
+        // old objects go first, but art is evicted only down to its guaranteed space
+        for (int i = 0; i < 4; i++) {
+            assertTrue(storage.contains("art/" + i));
+            assertFalse(storage.contains("audio/" + i));
+        }
+        assertFalse(storage.contains("art/4"));
+        assertFalse(storage.contains("art/5"));
+        assertEquals(4 * objectSize, storage.getUsedSpace("art/"));
+        assertEquals(2, storage.getEvictionCount("art/"));
+
+    }
+
+    /**
+     * Admission peeks at the victim without the eviction lock while writers evict. The audio
+     * object is pinned while it's rewritten, so eviction falls back to the global policy.
+     */
+    @Test
+    public void testConcurrentAdmissionWithNamespaces() throws Exception {
+
+        final int objectSize = 10;
+
+        // yields before taking its own lock to widen the window for lock order problems
+        EvictionPolicy evictionPolicy = new LruEvictionPolicy() {
+
+            @Nullable
+            @Override
+            public String peekVictim(@NonNull Filter filter) {
+                Thread.yield();
+                return super.peekVictim(filter);
+            }
+
+        };
+
+        final LimitedStorage storage = new LimitedStorage(
+                new MemoryStorage(),
+                7 * objectSize,
+                evictionPolicy
+        );
+        storage.setClassifier(new LimitedStorage.PrefixClassifier("audio/", "art/"));
+        storage.setGuaranteedSpace("art/", 4 * objectSize);
+
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final AtomicBoolean done = new AtomicBoolean();
+
+        Thread[] writers = new Thread[2];
+        for (int i = 0; i < writers.length; i++) {
+            final boolean audio = i == 0;
+            writers[i] = new Thread() {
+
+                @Override
+                public void run() {
+                    byte[] data = new byte[objectSize];
+                    try {
+                        for (int j = 0; j < 5000; j++) {
+                            try {
+                                saveTestObject(storage, audio ? "audio/0" : "art/" + j % 6, data);
+                            } catch (IOException ignored) {
+                                // everything else may be pinned or guaranteed at the moment
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+
+            };
+        }
+
+        Thread reader = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    while (!done.get()) {
+                        storage.getVictim(7 * objectSize);
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }
+
+        };
+
+        reader.start();
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join(30000);
+            assertFalse("Deadlock", writer.isAlive());
+        }
+        done.set(true);
+        reader.join(30000);
+        assertFalse("Deadlock", reader.isAlive());
+
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+
+    }
+
+    /**
+     * Reads objects with a skewed popularity through a storage which fits a tenth of them and
+     * writes the missing ones.
+     *
+     * @return the hit ratio of the storage
+     */
+    private static double replaySkewedTrace(EvictionPolicy policy) throws IOException {
+
+        final int objectCount = 200;
+        final int objectSize = 16;
+
+        LimitedStorage storage = new LimitedStorage(
+                new MemoryStorage(),
+                objectCount / 10 * objectSize,
+                policy
+        );
+
+        byte[] data = new byte[objectSize];
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            double r = random.nextDouble();
+            String id = Integer.toString((int) (objectCount * r * r * r));
+            InputStream inputStream = storage.openInputStream(id);
+            if (inputStream == null) {
+                saveTestObject(storage, id, data);
+            } else {
+                inputStream.close();
+            }
+        }
+
+        return storage.getHitRatio();
+
+    }
+
+}
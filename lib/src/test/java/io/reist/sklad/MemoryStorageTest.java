@@ -18,6 +18,28 @@ package io.reist.sklad;
 
 import android.support.annotation.NonNull;
 
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static io.reist.sklad.TestUtils.TEST_DATA_1;
+import static io.reist.sklad.TestUtils.TEST_DATA_2;
+import static io.reist.sklad.TestUtils.TEST_DATA_3;
+import static io.reist.sklad.TestUtils.TEST_NAME_1;
+import static io.reist.sklad.TestUtils.TEST_NAME_2;
+import static io.reist.sklad.TestUtils.TEST_NAME_3;
+import static io.reist.sklad.TestUtils.assertTestObject;
+import static io.reist.sklad.TestUtils.saveTestObject;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
 /**
  * Created by Reist on 24.06.16.
  */
@@ -29,4 +51,136 @@ public class MemoryStorageTest extends BaseStorageTest<MemoryStorage> {
         return new MemoryStorage();
     }
 
+    @Test
+    public void testSizeHint() throws IOException {
+
+        MemoryStorage storage = createStorage();
+
+        saveTestObject(storage, TEST_NAME_1, TEST_DATA_1, TEST_DATA_1.length);
+        saveTestObject(storage, TEST_NAME_2, TEST_DATA_2, TEST_DATA_2.length + 10);
+        saveTestObject(storage, TEST_NAME_3, TEST_DATA_3, 1);
+
+        assertTestObject(storage, TEST_NAME_1, TEST_DATA_1);
+        assertTestObject(storage, TEST_NAME_2, TEST_DATA_2);
+        assertTestObject(storage, TEST_NAME_3, TEST_DATA_3);
+        assertEquals(TEST_DATA_1.length + TEST_DATA_2.length + TEST_DATA_3.length, storage.getUsedSpace());
+
+    }
+
+    @Test
+    public void testSegmentedWrite() throws IOException {
+
+        MemoryStorage storage = createStorage();
+
+        byte[] data = new byte[200 * 1024 + 7];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 17);
+        }
+
+        // the object is published once on close, flushing doesn't copy it
+        OutputStream outputStream = storage.openOutputStream(TEST_NAME_1);
+        for (int off = 0; off < data.length; off += 1000) {
+            outputStream.write(data, off, Math.min(1000, data.length - off));
+            outputStream.flush();
+        }
+        assertFalse(storage.contains(TEST_NAME_1));
+        outputStream.close();
+
+        assertTestObject(storage, TEST_NAME_1, data);
+        assertEquals(data.length, storage.getUsedSpace());
+
+        int offset = 64 * 1024 - 3;
+        InputStream inputStream = storage.openInputStream(TEST_NAME_1, offset, 10);
+        assertArrayEquals(Arrays.copyOfRange(data, offset, offset + 10), TestUtils.readFully(inputStream));
+        inputStream.close();
+
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+
+        final MemoryStorage storage = createStorage();
+
+        final int threadCount = 8;
+        final int objectCount = 500;
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final int threadIndex = i;
+            threads[i] = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < objectCount; j++) {
+                            String id = threadIndex + "_" + j;
+                            saveTestObject(storage, id, TEST_DATA_1);
+                            assertTestObject(storage, id, TEST_DATA_1);
+                            if (j % 2 == 0) {
+                                assertTrue(storage.delete(id));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+
+            };
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+
+        assertEquals(threadCount * (objectCount / 2) * TEST_DATA_1.length, storage.getUsedSpace());
+
+        int count = 0;
+        while (storage.getOldestId() != null) {
+            assertTrue(storage.delete(storage.getOldestId()));
+            count++;
+        }
+        assertEquals(threadCount * (objectCount / 2), count);
+        assertEquals(0, storage.getUsedSpace());
+
+    }
+
+    @Test
+    public void testOldestId() throws IOException {
+
+        MemoryStorage storage = createStorage();
+        assertNull(storage.getOldestId());
+
+        saveTestObject(storage, TEST_NAME_1, TEST_DATA_1);
+        saveTestObject(storage, TEST_NAME_2, TEST_DATA_2);
+        saveTestObject(storage, TEST_NAME_3, TEST_DATA_3);
+        assertEquals(TEST_NAME_1, storage.getOldestId());
+
+        // rewriting makes an object the newest one
+        saveTestObject(storage, TEST_NAME_1, TEST_DATA_1);
+        assertEquals(TEST_NAME_2, storage.getOldestId());
+
+        // the oldest object which is accepted by the filter
+        assertEquals(TEST_NAME_3, storage.getOldestId(new EvictionPolicy.Filter() {
+
+            @Override
+            public boolean isEvictable(@NonNull String id) {
+                return !TEST_NAME_2.equals(id);
+            }
+
+        }));
+
+        storage.delete(TEST_NAME_2);
+        assertEquals(TEST_NAME_3, storage.getOldestId());
+
+        storage.deleteAll();
+        assertNull(storage.getOldestId());
+
+    }
+
 }
\ No newline at end of file
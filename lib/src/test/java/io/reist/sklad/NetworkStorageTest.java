@@ -19,6 +19,7 @@ package io.reist.sklad;
 import android.os.Build;
 import android.support.annotation.NonNull;
 
+import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
@@ -27,10 +28,16 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
 import java.io.IOException;
+import java.io.InputStream;
 
 import okhttp3.HttpUrl;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
+import okio.Buffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 
 /**
  * Created by Reist on 28.06.16.
@@ -82,4 +89,27 @@ public class NetworkStorageTest extends BaseNetworkStorageTest<NetworkStorage> {
 
     }
 
+    @Test
+    public void testPartialContent() throws Exception {
+
+        Buffer buffer = new Buffer();
+        buffer.write(TestUtils.TEST_DATA_1, 1, 1);
+
+        MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setResponseCode(206).setBody(buffer));
+        server.start();
+
+        baseUrl = server.url("/");
+
+        InputStream inputStream = createStorage().openInputStream(TestUtils.TEST_NAME_1, 1, 1);
+        assertNotNull(inputStream);
+        assertArrayEquals(new byte[] {TestUtils.TEST_DATA_1[1]}, TestUtils.readFully(inputStream));
+        inputStream.close();
+
+        assertEquals("bytes=1-1", server.takeRequest().getHeader("Range"));
+
+        server.shutdown();
+
+    }
+
 }
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+import static io.reist.sklad.TestUtils.TEST_DATA_1;
+import static io.reist.sklad.TestUtils.TEST_DATA_2;
+import static io.reist.sklad.TestUtils.TEST_DATA_3;
+import static io.reist.sklad.TestUtils.TEST_NAME_1;
+import static io.reist.sklad.TestUtils.TEST_NAME_2;
+import static io.reist.sklad.TestUtils.TEST_NAME_3;
+import static io.reist.sklad.TestUtils.assertTestObject;
+import static io.reist.sklad.TestUtils.saveTestObject;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OffHeapMemoryStorageTest extends BaseStorageTest<OffHeapMemoryStorage> {
+
+    @Override
+    @NonNull
+    protected OffHeapMemoryStorage createStorage() {
+        return new OffHeapMemoryStorage();
+    }
+
+    @Test
+    public void testLargeObject() throws IOException {
+
+        OffHeapMemoryStorage storage = createStorage();
+
+        byte[] data = createData(SlabAllocator.MAX_CHUNK_SIZE * 3 + 17);
+        saveTestObject(storage, TEST_NAME_1, data);
+        assertTestObject(storage, TEST_NAME_1, data);
+        assertEquals(data.length, storage.getUsedSpace());
+
+        int offset = SlabAllocator.MAX_CHUNK_SIZE - 5;
+        InputStream inputStream = storage.openInputStream(TEST_NAME_1, offset, 100);
+        assertNotNull(inputStream);
+        assertArrayEquals(Arrays.copyOfRange(data, offset, offset + 100), TestUtils.readFully(inputStream));
+        inputStream.close();
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1000);
+        assertEquals(1000, storage.read(TEST_NAME_1, buffer, offset));
+        buffer.flip();
+        byte[] actual = new byte[1000];
+        buffer.get(actual);
+        assertArrayEquals(Arrays.copyOfRange(data, offset, offset + 1000), actual);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        assertEquals(data.length, storage.transferTo(TEST_NAME_1, Channels.newChannel(outputStream)));
+        assertArrayEquals(data, outputStream.toByteArray());
+
+    }
+
+    @Test
+    public void testSizeHint() throws IOException {
+
+        OffHeapMemoryStorage storage = createStorage();
+
+        byte[] data = createData(SlabAllocator.MAX_CHUNK_SIZE + 300);
+        TestUtils.saveTestObject(storage, TEST_NAME_1, data, data.length);
+        TestUtils.saveTestObject(storage, TEST_NAME_2, TEST_DATA_2, 1);
+        TestUtils.saveTestObject(storage, TEST_NAME_3, TEST_DATA_3, 1000);
+
+        assertTestObject(storage, TEST_NAME_1, data);
+        assertTestObject(storage, TEST_NAME_2, TEST_DATA_2);
+        assertTestObject(storage, TEST_NAME_3, TEST_DATA_3);
+
+    }
+
+    @Test
+    public void testReaderOutlivesObject() throws IOException {
+
+        OffHeapMemoryStorage storage = createStorage();
+        saveTestObject(storage, TEST_NAME_1, TEST_DATA_1);
+
+        ReadableByteChannel channel = storage.openReadChannel(TEST_NAME_1);
+        assertNotNull(channel);
+
+        // chunks of the deleted object are not reused while it's read
+        assertTrue(storage.delete(TEST_NAME_1));
+        assertFalse(storage.contains(TEST_NAME_1));
+        assertNull(storage.openInputStream(TEST_NAME_1));
+        saveTestObject(storage, TEST_NAME_2, TEST_DATA_2);
+
+        ByteBuffer buffer = ByteBuffer.allocate(TEST_DATA_1.length);
+        assertEquals(TEST_DATA_1.length, channel.read(buffer));
+        assertArrayEquals(TEST_DATA_1, buffer.array());
+        channel.close();
+        assertFalse(channel.isOpen());
+
+        // and they are reused afterwards
+        long allocatedSpace = storage.getAllocatedSpace();
+        for (int i = 0; i < 100; i++) {
+            saveTestObject(storage, TEST_NAME_3, TEST_DATA_3);
+        }
+        assertEquals(allocatedSpace, storage.getAllocatedSpace());
+        assertTestObject(storage, TEST_NAME_2, TEST_DATA_2);
+        assertTestObject(storage, TEST_NAME_3, TEST_DATA_3);
+
+    }
+
+    @Test
+    public void testLimitedStorage() throws IOException {
+        LimitedStorage storage = LimitedStorageTest.createLimitedStorage(createStorage());
+        saveTestObject(storage, TEST_NAME_1, TEST_DATA_1);
+        saveTestObject(storage, TEST_NAME_2, TEST_DATA_2);
+        saveTestObject(storage, TEST_NAME_3, TEST_DATA_3);
+        assertFalse(storage.contains(TEST_NAME_1));
+        assertTrue(storage.contains(TEST_NAME_2));
+        assertTrue(storage.contains(TEST_NAME_3));
+    }
+
+    private static byte[] createData(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 13);
+        }
+        return data;
+    }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import android.os.Build;
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static io.reist.sklad.TestUtils.TEST_DATA_1;
+import static io.reist.sklad.TestUtils.TEST_DATA_2;
+import static io.reist.sklad.TestUtils.TEST_DATA_3;
+import static io.reist.sklad.TestUtils.saveTestObject;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(
+        constants = BuildConfig.class,
+        sdk = Build.VERSION_CODES.LOLLIPOP
+)
+public class ShardedFileStorageTest extends BaseStorageTest<ShardedFileStorage> {
+
+    private static final String SLASHED_ID = "artwork/album/cover.jpg";
+
+    @NonNull
+    @Override
+    protected ShardedFileStorage createStorage() {
+        return new ShardedFileStorage(RuntimeEnvironment.application.getCacheDir());
+    }
+
+    @NonNull
+    private static String createLongId() {
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < ShardedFileStorage.MAX_SEGMENT_LENGTH * 3) {
+            builder.append("very long id with spaces, slashes / and unicode ф ");
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void testLayout() throws IOException {
+
+        ShardedFileStorage storage = createStorage();
+        String longId = createLongId();
+
+        saveTestObject(storage, SLASHED_ID, TEST_DATA_1);
+        saveTestObject(storage, longId, TEST_DATA_2);
+
+        for (String id : new String[] {SLASHED_ID, longId}) {
+
+            File file = storage.getFileById(id);
+            assertTrue(file.isFile());
+            assertEquals(id, storage.getIdByFile(file));
+
+            File shard = file;
+            while (!storage.getParent().equals(shard.getParentFile().getParentFile())) {
+                assertTrue(shard.getName().length() <= ShardedFileStorage.MAX_SEGMENT_LENGTH + 1);
+                shard = shard.getParentFile();
+            }
+            assertEquals(2, shard.getName().length());
+
+        }
+
+        assertEquals(null, storage.getIdByFile(storage.getParent()));
+        assertEquals(null, storage.getIdByFile(new File(storage.getParent(), "stray")));
+
+    }
+
+    @Test
+    public void testRescan() throws IOException {
+
+        ShardedFileStorage storage = createStorage();
+        String longId = createLongId();
+
+        saveTestObject(storage, SLASHED_ID, TEST_DATA_1);
+        saveTestObject(storage, longId, TEST_DATA_2);
+
+        ShardedFileStorage rescanned = createStorage();
+        assertTrue(rescanned.contains(SLASHED_ID));
+        assertTrue(rescanned.contains(longId));
+        assertEquals(TEST_DATA_1.length + TEST_DATA_2.length, rescanned.getUsedSpace());
+
+        saveTestObject(rescanned, SLASHED_ID, TEST_DATA_3);
+        assertEquals(longId, rescanned.getOldestId());
+
+        rescanned.deleteAll();
+        assertFalse(rescanned.contains(SLASHED_ID));
+        assertFalse(rescanned.contains(longId));
+        assertEquals(0, createStorage().getUsedSpace());
+
+    }
+
+    @Test
+    public void testDeleteAllDuringWrite() throws IOException {
+
+        ShardedFileStorage storage = createStorage();
+        saveTestObject(storage, createLongId(), TEST_DATA_1);
+
+        OutputStream outputStream = storage.openOutputStream(SLASHED_ID);
+        outputStream.write(TEST_DATA_2);
+
+        // the temporary file of the write lives in a shard directory
+        storage.deleteAll();
+
+        outputStream.write(TEST_DATA_3);
+        outputStream.close();
+
+        assertTrue(storage.contains(SLASHED_ID));
+        assertEquals(TEST_DATA_2.length + TEST_DATA_3.length, storage.getUsedSpace());
+
+    }
+
+    @Test
+    public void testParentChange() throws IOException {
+
+        File cacheDir = RuntimeEnvironment.application.getCacheDir();
+
+        ShardedFileStorage storage = new ShardedFileStorage(new File(cacheDir, "root1"));
+        saveTestObject(storage, SLASHED_ID, TEST_DATA_1);
+
+        File root2 = new File(cacheDir, "root2");
+        storage.setParent(root2);
+
+        assertTrue(storage.getFileById(SLASHED_ID).getAbsolutePath().startsWith(root2.getAbsolutePath()));
+        assertTrue(storage.contains(SLASHED_ID));
+        assertTrue(new ShardedFileStorage(root2).contains(SLASHED_ID));
+
+    }
+
+}
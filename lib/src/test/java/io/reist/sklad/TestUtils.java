@@ -18,6 +18,7 @@ package io.reist.sklad;
 
 import org.junit.Assert;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -56,6 +57,23 @@ public class TestUtils {
         outputStream.close();
     }
 
+    static void saveTestObject(Storage storage, String id, byte[] data, long expectedLength) throws IOException {
+        OutputStream outputStream = Storages.openOutputStream(storage, id, expectedLength);
+        outputStream.write(data);
+        outputStream.flush();
+        outputStream.close();
+    }
+
+    static void assertTestObject(Storage storage, String id, byte[] data) throws IOException {
+        InputStream inputStream = storage.openInputStream(id);
+        Assert.assertNotNull(inputStream);
+        try {
+            Assert.assertArrayEquals(data, readFully(inputStream));
+        } finally {
+            inputStream.close();
+        }
+    }
+
     static void assertTestObject(Storage storage) throws IOException {
         assertTestObject(storage, 0);
     }
@@ -64,6 +82,33 @@ public class TestUtils {
         assertInputStream(storage.openInputStream(TEST_NAME_1), TEST_DATA_1, bytesToSkip);
     }
 
+    static void assertTestObjectRange(Storage storage, long offset, long length) throws IOException {
+
+        InputStream inputStream = Storages.openInputStream(storage, TEST_NAME_1, offset, length);
+        Assert.assertNotNull(inputStream);
+
+        int end = length < 0 ? TEST_DATA_1.length : (int) Math.min(offset + length, TEST_DATA_1.length);
+        byte[] expected = new byte[Math.max(end - (int) offset, 0)];
+        System.arraycopy(TEST_DATA_1, (int) offset, expected, 0, expected.length);
+
+        try {
+            Assert.assertArrayEquals(expected, readFully(inputStream));
+        } finally {
+            inputStream.close();
+        }
+
+    }
+
+    static byte[] readFully(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, read);
+        }
+        return outputStream.toByteArray();
+    }
+
     private static void assertInputStream(InputStream inputStream, byte[] data, long bytesToSkip) throws IOException {
 
         Assert.assertNotNull(inputStream);
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import android.os.Build;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static io.reist.sklad.TestUtils.TEST_DATA_1;
+import static io.reist.sklad.TestUtils.TEST_DATA_2;
+import static io.reist.sklad.TestUtils.TEST_NAME_1;
+import static io.reist.sklad.TestUtils.TEST_NAME_2;
+import static io.reist.sklad.TestUtils.readFully;
+import static io.reist.sklad.TestUtils.saveTestObject;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(
+        constants = BuildConfig.class,
+        sdk = Build.VERSION_CODES.LOLLIPOP
+)
+public class TinyLfuAdmissionPolicyTest {
+
+    @Test
+    public void testSketch() {
+
+        CountMinSketch sketch = new CountMinSketch(1000);
+        for (int i = 0; i < 20; i++) {
+            sketch.increment(TEST_NAME_1);
+        }
+        sketch.increment(TEST_NAME_2);
+
+        // counters saturate at 15
+        assertEquals(15, sketch.frequency(TEST_NAME_1));
+        assertEquals(1, sketch.frequency(TEST_NAME_2));
+
+        sketch.clear();
+        assertEquals(0, sketch.frequency(TEST_NAME_1));
+
+    }
+
+    @Test
+    public void testSketchAging() {
+
+        CountMinSketch sketch = new CountMinSketch(16);
+        for (int i = 0; i < 8; i++) {
+            sketch.increment(TEST_NAME_1);
+        }
+
+        // 160 increments halve all counters
+        for (int i = 0; i < 152; i++) {
+            sketch.increment(Integer.toString(i));
+        }
+
+        assertTrue(sketch.frequency(TEST_NAME_1) < 8);
+
+    }
+
+    @Test
+    public void testAdmission() {
+
+        TinyLfuAdmissionPolicy policy = new TinyLfuAdmissionPolicy(100, 2);
+
+        policy.onAccess(TEST_NAME_1);
+        assertFalse(policy.admit(TEST_NAME_1, null));
+        policy.onAccess(TEST_NAME_1);
+        assertTrue(policy.admit(TEST_NAME_1, null));
+
+        policy.onAccess(TEST_NAME_2);
+        assertFalse(policy.admit(TEST_NAME_2, TEST_NAME_1));
+        policy.onAccess(TEST_NAME_2);
+        assertFalse(policy.admit(TEST_NAME_2, TEST_NAME_1));
+        policy.onAccess(TEST_NAME_2);
+        assertTrue(policy.admit(TEST_NAME_2, TEST_NAME_1));
+
+    }
+
+    @Test
+    public void testCachedStorage() throws IOException {
+
+        MemoryStorage remote = new MemoryStorage();
+        saveTestObject(remote, TEST_NAME_1, TEST_DATA_1);
+        saveTestObject(remote, TEST_NAME_2, TEST_DATA_2);
+
+        LimitedStorage local = new LimitedStorage(
+                new MemoryStorage(),
+                TEST_DATA_1.length,
+                new LruEvictionPolicy()
+        );
+
+        CachedStorage storage = new CachedStorage(remote, local);
+        storage.setAdmissionPolicy(new TinyLfuAdmissionPolicy(100));
+
+        // there is free space for the first object
+        assertRead(storage, TEST_NAME_1, TEST_DATA_1);
+        assertRead(storage, TEST_NAME_1, TEST_DATA_1);
+        assertTrue(local.contains(TEST_NAME_1));
+
+        // the second object is read less often than the cached one
+        assertRead(storage, TEST_NAME_2, TEST_DATA_2);
+        assertTrue(local.contains(TEST_NAME_1));
+        assertFalse(local.contains(TEST_NAME_2));
+
+        // now it's read more often and replaces the cached one
+        assertRead(storage, TEST_NAME_2, TEST_DATA_2);
+        assertRead(storage, TEST_NAME_2, TEST_DATA_2);
+        assertFalse(local.contains(TEST_NAME_1));
+        assertTrue(local.contains(TEST_NAME_2));
+
+    }
+
+    private static void assertRead(Storage storage, String id, byte[] data) throws IOException {
+        InputStream inputStream = storage.openInputStream(id);
+        assertNotNull(inputStream);
+        try {
+            assertArrayEquals(data, readFully(inputStream));
+        } finally {
+            inputStream.close();
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2017 Renat Sarymsakov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.reist.sklad;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Measures the throughput of {@link XorStorage} with several buffer sizes and step denominators.
+ * The results are printed, nothing is asserted about them.
+ *
+ * Benchmarks are excluded from the unit tests, run them with
+ * {@code ./gradlew :lib:testDebugUnitTest -Pbenchmarks --tests '*XorStorageBenchmarkTest'}.
+ */
+public class XorStorageBenchmarkTest {
+
+    private static final int OBJECT_SIZE = 16 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int ITERATIONS = 3;
+
+    private static final byte[] KEY = new byte[] {35, 61, -122, 61, -88};
+
+    private static final int[][] SETTINGS = {
+            {128 * 1024, 4},
+            {128 * 1024, 1},
+            {16 * 1024, 2},
+            {4 * 1024, 8}
+    };
+
+    @Test
+    public void testThroughput() throws Exception {
+        for (int[] settings : SETTINGS) {
+            benchmark(settings[0], settings[1]);
+        }
+    }
+
+    private static void benchmark(int encryptionBufferSize, int encryptionStepDenominator) throws IOException {
+
+        XorStorage storage = new XorStorage(
+                encryptionBufferSize,
+                encryptionStepDenominator,
+                new MemoryStorage(),
+                new XorStorage.KeyProvider() {
+
+                    @Override
+                    public byte[] get() {
+                        return KEY;
+                    }
+
+                }
+        );
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        new Random(0).nextBytes(buffer);
+
+        long writeTime = Long.MAX_VALUE;
+        long readTime = Long.MAX_VALUE;
+
+        // the first iteration warms up the code, the best time is reported
+        for (int i = 0; i < ITERATIONS; i++) {
+
+            long start = System.nanoTime();
+            OutputStream outputStream = storage.openOutputStream(TestUtils.TEST_NAME_1, OBJECT_SIZE);
+            for (int written = 0; written < OBJECT_SIZE; written += buffer.length) {
+                outputStream.write(buffer);
+            }
+            outputStream.close();
+            writeTime = Math.min(writeTime, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            InputStream inputStream = storage.openInputStream(TestUtils.TEST_NAME_1);
+            assertNotNull(inputStream);
+            long total = 0;
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                total += read;
+            }
+            inputStream.close();
+            assertEquals(OBJECT_SIZE, total);
+            readTime = Math.min(readTime, System.nanoTime() - start);
+
+        }
+
+        System.out.println(
+                "buffer " + encryptionBufferSize + ", denominator " + encryptionStepDenominator +
+                ": write " + throughput(writeTime) + " MB/s" +
+                ", read " + throughput(readTime) + " MB/s"
+        );
+
+    }
+
+    private static long throughput(long time) {
+        return OBJECT_SIZE / Math.max(time / 1000, 1);
+    }
+
+}
@@ -20,8 +20,11 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Created by Reist on 27.10.16.
@@ -79,6 +82,192 @@ public class XorStorageTest extends BaseStorageTest<XorStorage> {
 
     }
 
+    /**
+     * Writes and reads in pieces of various sizes, including single bytes, and compares the
+     * stored data with the data XORed byte by byte.
+     */
+    @Test
+    public void testPieces() throws IOException {
+
+        int[][] settings = {{ENCRYPTION_BUFFER_SIZE, ENCRYPTION_STEP_DENOMINATOR}, {100, 3}, {64, 1}, {10, 20}};
+
+        for (int[] setting : settings) {
+
+            int bufferSize = setting[0];
+            int denominator = setting[1];
+
+            MemoryStorage memoryStorage = new MemoryStorage();
+            XorStorage xorStorage = new XorStorage(bufferSize, denominator, memoryStorage, new XorStorage.KeyProvider() {
+
+                @Override
+                public byte[] get() {
+                    return ENCRYPTION_KEY;
+                }
+
+            });
+
+            byte[] data = new byte[bufferSize * 3 + 17];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) (i * 7);
+            }
+
+            OutputStream outputStream = xorStorage.openOutputStream(TestUtils.TEST_NAME_1);
+            int offset = 0;
+            for (int piece = 0; offset < data.length; piece++) {
+                if (piece % 3 == 0) {
+                    outputStream.write(data[offset]);
+                    offset++;
+                } else {
+                    int length = Math.min(piece * 13 % 70 + 1, data.length - offset);
+                    outputStream.write(data, offset, length);
+                    offset += length;
+                }
+            }
+            outputStream.close();
+
+            int lengthToEncrypt = bufferSize / denominator;
+            byte[] expected = data.clone();
+            for (int i = 0; i < expected.length; i++) {
+                int offsetInBuffer = i % bufferSize;
+                if (offsetInBuffer < lengthToEncrypt) {
+                    expected[i] ^= ENCRYPTION_KEY[offsetInBuffer % ENCRYPTION_KEY.length];
+                }
+            }
+
+            Assert.assertArrayEquals(expected, TestUtils.readFully(memoryStorage.openInputStream(TestUtils.TEST_NAME_1)));
+            Assert.assertArrayEquals(data, TestUtils.readFully(xorStorage.openInputStream(TestUtils.TEST_NAME_1)));
+
+            InputStream inputStream = xorStorage.openInputStream(TestUtils.TEST_NAME_1, 3, -1);
+            Assert.assertNotNull(inputStream);
+            for (int i = 3; i < data.length; i++) {
+                assertEquals(data[i] & 0xFF, inputStream.read());
+            }
+            assertEquals(-1, inputStream.read());
+            inputStream.close();
+
+        }
+
+    }
+
+    @Test
+    public void testMarkAndReset() throws IOException {
+
+        byte[] data = new byte[XorStorage.MAX_REWIND_BUFFER_SIZE * 2];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 7);
+        }
+
+        // the streams of the first storage support marks, the ones of the second don't
+        JournalingStorage[] storages = {
+                new MemoryStorage() {
+
+                    @Override
+                    public InputStream openInputStream(@NonNull String id) {
+                        InputStream inputStream = super.openInputStream(id);
+                        return inputStream == null ? null : new BufferedInputStream(inputStream);
+                    }
+
+                },
+                new MemoryStorage()
+        };
+
+        for (JournalingStorage storage : storages) {
+
+            XorStorage xorStorage = createXorStorage(storage);
+            TestUtils.saveTestObject(xorStorage, TestUtils.TEST_NAME_1, data);
+
+            InputStream inputStream = xorStorage.openInputStream(TestUtils.TEST_NAME_1);
+            Assert.assertNotNull(inputStream);
+            assertTrue(inputStream.markSupported());
+
+            // a header is probed and read again
+            byte[] header = new byte[100];
+            inputStream.mark(header.length);
+            assertEquals(header.length, inputStream.read(header));
+            inputStream.reset();
+            assertRead(inputStream, data, 0, 30);
+
+            // a mark in the middle of the replayed bytes
+            inputStream.mark(1000);
+            assertEquals(10, inputStream.skip(10));
+            assertRead(inputStream, data, 40, 200);
+            inputStream.reset();
+            assertRead(inputStream, data, 30, 500);
+
+            // more than the rewind buffer holds
+            inputStream.mark(data.length);
+            assertRead(inputStream, data, 530, XorStorage.MAX_REWIND_BUFFER_SIZE + 10);
+            inputStream.reset();
+            assertRead(inputStream, data, 530, data.length - 530);
+            assertEquals(-1, inputStream.read());
+
+            inputStream.close();
+
+            // a range is not read past its end after resetting
+            inputStream = xorStorage.openInputStream(TestUtils.TEST_NAME_1, 100, XorStorage.MAX_REWIND_BUFFER_SIZE + 50);
+            Assert.assertNotNull(inputStream);
+            inputStream.mark(0);
+            assertRead(inputStream, data, 100, XorStorage.MAX_REWIND_BUFFER_SIZE + 50);
+            inputStream.reset();
+            assertRead(inputStream, data, 100, XorStorage.MAX_REWIND_BUFFER_SIZE + 50);
+            assertEquals(-1, inputStream.read());
+            inputStream.close();
+
+        }
+
+    }
+
+    @Test
+    public void testPositionedRead() throws IOException {
+
+        MemoryStorage memoryStorage = new MemoryStorage();
+        XorStorage xorStorage = new XorStorage(64, 3, memoryStorage, new XorStorage.KeyProvider() {
+
+            @Override
+            public byte[] get() {
+                return ENCRYPTION_KEY;
+            }
+
+        });
+
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 7);
+        }
+
+        TestUtils.saveTestObject(xorStorage, TestUtils.TEST_NAME_1, data);
+
+        for (ByteBuffer buffer : new ByteBuffer[] {ByteBuffer.allocate(100), ByteBuffer.allocateDirect(100)}) {
+            for (int position : new int[] {0, 5, 63, 64, 977}) {
+
+                buffer.clear();
+                buffer.position(3);
+
+                int expectedLength = Math.min(buffer.remaining(), data.length - position);
+                assertEquals(expectedLength, xorStorage.read(TestUtils.TEST_NAME_1, buffer, position));
+
+                byte[] actual = new byte[expectedLength];
+                buffer.flip();
+                buffer.position(3);
+                buffer.get(actual);
+                Assert.assertArrayEquals(Arrays.copyOfRange(data, position, position + expectedLength), actual);
+
+            }
+        }
+
+    }
+
+    private static void assertRead(InputStream inputStream, byte[] data, int offset, int length) throws IOException {
+        byte[] actual = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int count = inputStream.read(actual, read, length - read);
+            assertTrue(count > 0);
+            read += count;
+        }
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, offset, offset + length), actual);
+    }
+
     @NonNull
     private static String generateTestString() {
         String unencryptedData = "";
@@ -129,10 +318,15 @@ public class XorStorageTest extends BaseStorageTest<XorStorage> {
 
     @NonNull
     static XorStorage createXorStorage(File fileDir) {
+        return createXorStorage(new FileStorage(fileDir));
+    }
+
+    @NonNull
+    private static XorStorage createXorStorage(JournalingStorage journalingStorage) {
         return new XorStorage(
                 ENCRYPTION_BUFFER_SIZE,
                 ENCRYPTION_STEP_DENOMINATOR,
-                new FileStorage(fileDir),
+                journalingStorage,
                 new XorStorage.KeyProvider() {
 
                     @Override